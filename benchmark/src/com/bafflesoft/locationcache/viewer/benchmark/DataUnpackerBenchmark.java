@@ -0,0 +1,131 @@
+package com.bafflesoft.locationcache.viewer.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.bafflesoft.locationcache.viewer.BufferUnpacker;
+import com.bafflesoft.locationcache.viewer.DataUnpacker;
+
+/**
+ * Each invocation decodes one value at every 8 byte step of a 64KB buffer, byte by byte
+ * with DataUnpacker or through the ByteBuffer in BufferUnpacker.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataUnpackerBenchmark {
+	private static final int BUFFER = 65536;
+	private static final int VALUES = BUFFER / 8 - 2;
+
+	private static final int RECORD   = 2 + 17 + BufferUnpacker.RECORD_VALUES_LENGTH;
+	private static final int RECORDS  = BUFFER / RECORD;
+
+	private byte[] data;
+	private BufferUnpacker unpacker;
+	private BufferUnpacker.Record record = new BufferUnpacker.Record();
+
+	@Setup
+	public void setup() {
+		data = new byte[BUFFER];
+		new Random(42).nextBytes(data);
+		for ( int i = 0; i < data.length; i++ ) {
+			data[i] &= 0x7F; // printable-ish for decodeString
+		}
+		// make every RECORD bytes look like a record with a 17 character key
+		for ( int r = 0; r < RECORDS; r++ ) {
+			data[r * RECORD    ] = 0;
+			data[r * RECORD + 1] = 17;
+		}
+		unpacker = new BufferUnpacker(data);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void decodeShort(Blackhole bh) {
+		for ( int i = 0; i < VALUES; i++ ) bh.consume(DataUnpacker.decodeShort(data, i * 8));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void decodeInt(Blackhole bh) {
+		for ( int i = 0; i < VALUES; i++ ) bh.consume(DataUnpacker.decodeInt(data, i * 8));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void decodeLong(Blackhole bh) {
+		for ( int i = 0; i < VALUES; i++ ) bh.consume(DataUnpacker.decodeLong(data, i * 8));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void decodeFloat(Blackhole bh) {
+		for ( int i = 0; i < VALUES; i++ ) bh.consume(DataUnpacker.decodeFloat(data, i * 8));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void decodeString(Blackhole bh) {
+		for ( int i = 0; i < VALUES; i++ ) bh.consume(DataUnpacker.decodeString(data, i * 8, 16));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void bufferDecodeInt(Blackhole bh) {
+		for ( int i = 0; i < VALUES; i++ ) bh.consume(unpacker.decodeInt(i * 8));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void bufferDecodeLong(Blackhole bh) {
+		for ( int i = 0; i < VALUES; i++ ) bh.consume(unpacker.decodeLong(i * 8));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void bufferDecodeFloat(Blackhole bh) {
+		for ( int i = 0; i < VALUES; i++ ) bh.consume(unpacker.decodeFloat(i * 8));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public void recordBytewise(Blackhole bh) {
+		for ( int r = 0; r < RECORDS; r++ ) {
+			int i = r * RECORD + 17;
+			bh.consume(DataUnpacker.decodeInt(data, i + 2));
+			bh.consume(DataUnpacker.decodeInt(data, i + 6));
+			bh.consume((int) (DataUnpacker.decodeFloat(data, i + 10) * 1E6));
+			bh.consume((int) (DataUnpacker.decodeFloat(data, i + 18) * 1E6));
+			bh.consume(DataUnpacker.decodeLong(data, i + 26));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public void recordBuffer(Blackhole bh) {
+		for ( int r = 0; r < RECORDS; r++ ) {
+			unpacker.decodeRecord(r * RECORD, record);
+			bh.consume(record.accuracy);
+			bh.consume(record.confidence);
+			bh.consume(record.latIE6);
+			bh.consume(record.lonIE6);
+			bh.consume(record.timestamp);
+		}
+	}
+}
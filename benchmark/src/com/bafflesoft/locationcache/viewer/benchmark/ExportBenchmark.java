@@ -0,0 +1,80 @@
+package com.bafflesoft.locationcache.viewer.benchmark;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bafflesoft.locationcache.viewer.ExportFormat;
+import com.bafflesoft.locationcache.viewer.Exporter;
+import com.bafflesoft.locationcache.viewer.LocationCacheParser;
+import com.bafflesoft.locationcache.viewer.LocationStore;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ExportBenchmark {
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int records;
+
+	@Param({ "GPX", "KML", "GeoJSON", "CSV" })
+	public String format;
+
+	private LocationStore points;
+	private int[]         order;
+	private ExportFormat  exportFormat;
+
+	@Setup
+	public void setup() {
+		points = LocationCacheParser.parseLocationCacheFile(SyntheticCaches.wifi(records, 3), LocationStore.TYPE_WIFI);
+		order  = points.sortedByTime();
+
+		for ( ExportFormat f : ExportFormat.ALL ) {
+			if ( f.name.equals(format) ) exportFormat = f;
+		}
+	}
+
+	@Benchmark
+	public long export() throws IOException {
+		CountingWriter out = new CountingWriter();
+		Exporter.export(out, points, order, exportFormat, "benchmark", null);
+		return out.count;
+	}
+
+	/**
+	 * Discards everything, so the benchmark measures formatting rather than I/O.
+	 */
+	static class CountingWriter extends Writer {
+		long count = 0;
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public void write(String str) {
+			count += str.length();
+		}
+
+		@Override
+		public void flush() { }
+
+		@Override
+		public void close() { }
+	}
+}
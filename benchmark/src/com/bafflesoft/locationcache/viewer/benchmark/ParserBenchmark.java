@@ -0,0 +1,56 @@
+package com.bafflesoft.locationcache.viewer.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bafflesoft.locationcache.viewer.LocationCacheParser;
+import com.bafflesoft.locationcache.viewer.LocationStore;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int records;
+
+	@Param({ "wifi", "cell" })
+	public String type;
+
+	private byte[] data;
+	private byte   recordType;
+
+	@Setup
+	public void setup() {
+		boolean wifi = "wifi".equals(type);
+		data       = wifi ? SyntheticCaches.wifi(records, 42) : SyntheticCaches.cell(records, 42);
+		recordType = wifi ? LocationStore.TYPE_WIFI : LocationStore.TYPE_CELL;
+	}
+
+	@Benchmark
+	public LocationStore parseBuffered() {
+		return LocationCacheParser.parseLocationCacheFile(data, recordType);
+	}
+
+	@Benchmark
+	public LocationStore parseStreaming() throws IOException {
+		LocationStore store = new LocationStore();
+		LocationCacheParser.parseLocationCacheStream(new ByteArrayInputStream(data), store.appender(recordType));
+		return store;
+	}
+}
@@ -0,0 +1,100 @@
+package com.bafflesoft.locationcache.viewer.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.bafflesoft.locationcache.viewer.LocationCacheParser;
+import com.bafflesoft.locationcache.viewer.ShellCommand.CommandResult;
+import com.bafflesoft.locationcache.viewer.ShellCommand.StreamConsumer;
+import com.bafflesoft.locationcache.viewer.ShellSession;
+
+/**
+ * Runs ShellSession against a plain "sh" standing in for su, checking that each command's
+ * stdout, stderr and exit code come back to it and not to the one after. "ant test"
+ * runs it; it exits non-zero on the first failure.
+ */
+public class ShellSessionCheck {
+	private static int checks = 0;
+
+	public static void main(String[] args) throws Exception {
+		ShellSession session = new ShellSession("sh");
+		try {
+			CommandResult r = session.run("echo hello");
+			check("stdout", "hello\n".equals(new String(r.stdout)));
+			check("exit 0", r.success());
+			check("no stderr", r.stderr == null);
+
+			r = session.run("false");
+			check("exit 1", r.exit_value != null && r.exit_value == 1);
+
+			r = session.run("sh -c 'echo oops >&2; exit 3'");
+			check("stderr", "oops".equals(r.stderr));
+			check("exit 3", r.exit_value != null && r.exit_value == 3);
+			r = session.run("echo clean");
+			check("stderr stays with its command", r.stderr == null);
+
+			r = session.run("cat");
+			check("stdin is empty", r.success() && r.stdout.length == 0);
+
+			r = session.run("printf 'no newline'");
+			check("output without a line break", "no newline".equals(new String(r.stdout)));
+
+			r = session.run("head -c 1000000 /dev/zero");
+			check("large output", r.success() && r.stdout.length == 1000000);
+
+			// a consumer that stops early mustn't leave output for the next command
+			session.runStreaming("seq 1 100000", new StreamConsumer() {
+				public void consume(InputStream in) throws IOException {
+					in.read(new byte[10]);
+				}
+			});
+			r = session.run("echo next");
+			check("unread output skipped", "next\n".equals(new String(r.stdout)));
+
+			// the streaming fallback: a cache file parsed straight out of cat
+			File cache = File.createTempFile("cache", ".wifi");
+			FileOutputStream out = new FileOutputStream(cache);
+			out.write(SyntheticCaches.wifi(500, 1));
+			out.close();
+			final int[] records = new int[1];
+			r = session.runStreaming("cat " + cache.getPath(), new StreamConsumer() {
+				public void consume(InputStream in) throws IOException {
+					records[0] = LocationCacheParser.parseLocationCacheStream(in, new LocationCacheParser.RecordHandler() {
+						public void onRecord(byte[] keyBuffer, int keyOffset, int keyLength, int accuracy, int confidence, int latIE6, int lonIE6, long timestamp) { }
+					});
+				}
+			});
+			cache.delete();
+			check("streamed parse", r.success() && records[0] == 500);
+
+			// kill() ends a command running in the shell without waiting for it
+			final ShellSession killed = session;
+			new Thread() {
+				@Override
+				public void run() {
+					try { Thread.sleep(300); } catch ( InterruptedException ex ) { }
+					killed.kill();
+				}
+			}.start();
+			long started = System.currentTimeMillis();
+			r = session.run("while : ; do : ; done");
+			check("killed command returns", System.currentTimeMillis() - started < 5000 && !r.success());
+			r = session.run("echo again");
+			check("new shell after kill", "again\n".equals(new String(r.stdout)));
+		} finally {
+			session.close();
+		}
+
+		System.out.println(checks + " checks passed");
+	}
+
+	private static void check(String name, boolean ok) {
+		if ( !ok ) {
+			System.err.println("FAILED: " + name);
+			System.exit(1);
+		}
+		checks++;
+	}
+}
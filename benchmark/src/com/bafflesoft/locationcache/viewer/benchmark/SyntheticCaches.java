@@ -0,0 +1,64 @@
+package com.bafflesoft.locationcache.viewer.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates cache.wifi / cache.cell files in the same binary layout the parser reads:
+ * a ">hh" version/count header, then ">hSiiddQ" records.
+ */
+public class SyntheticCaches {
+	public static byte[] wifi(int records, long seed) {
+		return generate(records, seed, true);
+	}
+
+	public static byte[] cell(int records, long seed) {
+		return generate(records, seed, false);
+	}
+
+	private static byte[] generate(int records, long seed, boolean wifi) {
+		Random random = new Random(seed);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + records * 52);
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		try {
+			out.writeShort(1);
+			out.writeShort(records); // the real files store a short, so large counts wrap
+
+			long time = 1300000000000L;
+			for ( int i = 0; i < records; i++ ) {
+				String key = wifi ? bssid(random) : cellKey(random);
+				out.writeShort(key.length());
+				out.writeBytes(key);
+				out.writeInt(wifi ? 20 + random.nextInt(150) : 500 + random.nextInt(3000));
+				out.writeInt(random.nextInt(100));
+				out.writeDouble(40 + random.nextGaussian());
+				out.writeDouble(-75 + random.nextGaussian());
+				time += random.nextInt(60000);
+				out.writeLong(time);
+			}
+			out.flush();
+		} catch ( IOException ex ) {
+			throw new IllegalStateException(ex); // can't happen writing to memory
+		}
+
+		return bytes.toByteArray();
+	}
+
+	private static String bssid(Random random) {
+		StringBuilder b = new StringBuilder(17);
+		for ( int i = 0; i < 6; i++ ) {
+			if ( i > 0 ) b.append(':');
+			String hex = Integer.toHexString(random.nextInt(256));
+			if ( hex.length() == 1 ) b.append('0');
+			b.append(hex);
+		}
+		return b.toString();
+	}
+
+	private static String cellKey(Random random) {
+		return "310:" + (random.nextInt(900) + 10) + ":" + random.nextInt(65536) + ":" + random.nextInt(1 << 28);
+	}
+}
@@ -0,0 +1,50 @@
+package com.bafflesoft.locationcache.viewer.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bafflesoft.locationcache.viewer.LocationCacheParser;
+import com.bafflesoft.locationcache.viewer.LocationStore;
+
+/**
+ * Merging the cell and wifi loads into one store and ordering it by time - what used to be
+ * the TreeSet merge into pointsAll.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimelineBenchmark {
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int records;
+
+	private LocationStore cell;
+	private LocationStore wifi;
+
+	@Setup
+	public void setup() {
+		cell = LocationCacheParser.parseLocationCacheFile(SyntheticCaches.cell(records / 10, 1), LocationStore.TYPE_CELL);
+		wifi = LocationCacheParser.parseLocationCacheFile(SyntheticCaches.wifi(records,      2), LocationStore.TYPE_WIFI);
+	}
+
+	@Benchmark
+	public int[] mergeAndSort() {
+		LocationStore all = new LocationStore(cell.size() + wifi.size());
+		all.addAll(cell);
+		all.addAll(wifi);
+		return all.sortedByTime();
+	}
+}
@@ -0,0 +1,97 @@
+package com.bafflesoft.locationcache.viewer;
+
+import java.util.Random;
+
+import android.app.AlertDialog;
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.util.Log;
+
+/**
+ * Debug builds only (see build.xml): times filling a Markers layer one point at a time
+ * (populate() per point) against the bulk setOverlays(), on synthetic points. One at a
+ * time grows with the square of the size, so it's only timed up to SINGLE_MAX points.
+ */
+public class MarkersBenchmark extends AsyncTask<Void, String, String> {
+	private static final int[] SIZES      = { 1000, 2000, 10000, 50000 };
+	private static final int   SINGLE_MAX = 2000;
+
+	private final MainActivity activity;
+	private ProgressDialog dialog = null;
+
+	public MarkersBenchmark(MainActivity activity) {
+		this.activity = activity;
+	}
+
+	@Override
+	protected void onPreExecute() {
+		dialog = ProgressDialog.show(activity, "Benchmarking Markers", "");
+	}
+
+	@Override
+	protected String doInBackground(Void... params) {
+		Drawable marker = activity.getResources().getDrawable(R.drawable.icon_wifi);
+		StringBuilder results = new StringBuilder();
+
+		for ( int size : SIZES ) {
+			LocationStore store = syntheticStore(size);
+			int[] rows = new int[size];
+			for ( int i = 0; i < size; i++ ) rows[i] = i;
+
+			publishProgress(size + " points, bulk");
+			MainActivity.Markers bulk = activity.new Markers(marker, activity);
+			long start = System.currentTimeMillis();
+			bulk.setOverlays(store, rows, size);
+			long bulkMs = System.currentTimeMillis() - start;
+
+			String line = size + " points: " + bulkMs + "ms bulk";
+			if ( size <= SINGLE_MAX ) {
+				publishProgress(size + " points, one at a time");
+				MainActivity.Markers single = activity.new Markers(marker, activity);
+				single.setStore(store);
+				start = System.currentTimeMillis();
+				for ( int i = 0; i < size; i++ ) {
+					single.addOverlay(i);
+				}
+				line += ", " + (System.currentTimeMillis() - start) + "ms one at a time";
+			}
+			Log.v("LocationCacheViewer", "benchmark " + line);
+			results.append(line).append("\n");
+		}
+
+		return results.toString();
+	}
+
+	@Override
+	protected void onProgressUpdate(String... values) {
+		dialog.setMessage(values[0]);
+	}
+
+	@Override
+	protected void onPostExecute(String result) {
+		try {
+			dialog.dismiss();
+		} catch ( Exception ex ) { } // ignore the "View not attached to a window manager" exception
+
+		new AlertDialog.Builder(activity).setTitle("Markers Benchmark")
+			.setMessage(result)
+			.setPositiveButton("Ok", new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int which) {}
+			})
+			.show();
+	}
+
+	private static LocationStore syntheticStore(int size) {
+		Random random = new Random(size);
+		LocationStore store = new LocationStore(size);
+		byte[] key = "00:00:00:00:00:00".getBytes();
+
+		for ( int i = 0; i < size; i++ ) {
+			store.add(LocationStore.TYPE_WIFI, key, 0, key.length, 20 + random.nextInt(200), 75,
+					40000000 + random.nextInt(1000000), -75000000 + random.nextInt(1000000), 1300000000000L + i * 1000L);
+		}
+		return store;
+	}
+}
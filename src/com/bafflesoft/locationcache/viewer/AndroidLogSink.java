@@ -0,0 +1,13 @@
+package com.bafflesoft.locationcache.viewer;
+
+import android.util.Log;
+
+public class AndroidLogSink implements DebugLog.Sink {
+	public void v(String tag, String message) {
+		Log.v(tag, message);
+	}
+
+	public void e(String tag, String message) {
+		Log.e(tag, message);
+	}
+}
@@ -0,0 +1,142 @@
+package com.bafflesoft.locationcache.viewer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * DataUnpacker over a big-endian ByteBuffer, so values are read whole instead of being
+ * assembled a byte at a time. Works the same on heap, direct and memory-mapped buffers.
+ */
+public class BufferUnpacker {
+	// accuracy (4) + confidence (4) + latitude (8) + longitude (8) + time (8)
+	public static final int RECORD_VALUES_LENGTH = 32;
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * The values of one record. Reused from record to record, including the key view.
+	 */
+	public static class Record {
+		public final KeyView key = new KeyView();
+		public int  accuracy;
+		public int  confidence;
+		public int  latIE6;
+		public int  lonIE6;
+		public long timestamp;
+	}
+
+	/**
+	 * A key still sitting in the buffer. Only becomes a String if toString() is called.
+	 */
+	public static class KeyView implements CharSequence {
+		private ByteBuffer buffer;
+		private int offset;
+		private int length;
+
+		void set(ByteBuffer buffer, int offset, int length) {
+			this.buffer = buffer;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public int offset() {
+			return offset;
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public char charAt(int index) {
+			return (char) buffer.get(offset + index);
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			KeyView sub = new KeyView();
+			sub.set(buffer, offset + start, end - start);
+			return sub;
+		}
+
+		/**
+		 * Copies the key bytes into dst at dstOffset.
+		 */
+		public void copyTo(byte[] dst, int dstOffset) {
+			for ( int i = 0; i < length; i++ ) {
+				dst[dstOffset + i] = buffer.get(offset + i);
+			}
+		}
+
+		@Override
+		public String toString() {
+			char[] chars = new char[length];
+			for ( int i = 0; i < length; i++ ) {
+				chars[i] = (char) buffer.get(offset + i);
+			}
+			return new String(chars);
+		}
+	}
+
+	public BufferUnpacker(byte[] data) {
+		this(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Index 0 is the buffer's current position.
+	 */
+	public BufferUnpacker(ByteBuffer data) {
+		buffer = data.slice();
+		buffer.order(ByteOrder.BIG_ENDIAN);
+	}
+
+	public int limit() {
+		return buffer.limit();
+	}
+
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	public short decodeShort(int idx) {
+		return buffer.getShort(idx);
+	}
+
+	public int decodeInt(int idx) {
+		return buffer.getInt(idx);
+	}
+
+	public long decodeLong(int idx) {
+		return buffer.getLong(idx);
+	}
+
+	public double decodeFloat(int idx) {
+		return buffer.getDouble(idx);
+	}
+
+	public KeyView decodeKey(int idx, int length, KeyView into) {
+		into.set(buffer, idx, length);
+		return into;
+	}
+
+	/**
+	 * Decodes a whole ">hSiiddQ" record starting at idx into out.
+	 *
+	 * @return index just past the record, or -1 if the buffer ends partway through it
+	 */
+	public int decodeRecord(int idx, Record out) {
+		int limit = buffer.limit();
+		if ( idx + 2 > limit ) return -1;
+
+		int keyLength = buffer.getShort(idx) & 0xFFFF;
+		int values    = idx + 2 + keyLength;
+		if ( values + RECORD_VALUES_LENGTH > limit ) return -1;
+
+		out.key.set(buffer, idx + 2, keyLength);
+		out.accuracy   = buffer.getInt(values);
+		out.confidence = buffer.getInt(values + 4);
+		out.latIE6     = (int) (buffer.getDouble(values +  8) * 1E6);
+		out.lonIE6     = (int) (buffer.getDouble(values + 16) * 1E6);
+		out.timestamp  = buffer.getLong(values + 24);
+
+		return values + RECORD_VALUES_LENGTH;
+	}
+}
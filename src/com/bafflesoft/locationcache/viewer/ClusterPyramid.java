@@ -0,0 +1,168 @@
+package com.bafflesoft.locationcache.viewer;
+
+import java.util.Arrays;
+
+/**
+ * Points aggregated into square lat/lon grid cells at several resolutions, so a zoomed out
+ * map can draw one glyph per cell instead of one marker per point. Level 0 cells are
+ * BASE_CELL_E6 wide and every level above doubles the cell size.
+ */
+public class ClusterPyramid {
+	public static final int BASE_CELL_E6 = 10000; // 0.01 degrees, roughly 1km
+	public static final int LEVELS       = 16;
+
+	private static final double METERS_PER_DEGREE = 111320.0;
+
+	public static class Level {
+		public final int cellE6;
+		public final int size;
+
+		public final int[] latE6;        // mean position of the points in the cell
+		public final int[] lonE6;
+		public final int[] count;
+		public final int[] meanAccuracy;
+
+		// grid coordinates, used to build the next level up
+		final int[] cellX;
+		final int[] cellY;
+
+		Level(int cellE6, int size) {
+			this.cellE6 = cellE6;
+			this.size   = size;
+
+			latE6        = new int[size];
+			lonE6        = new int[size];
+			count        = new int[size];
+			meanAccuracy = new int[size];
+			cellX        = new int[size];
+			cellY        = new int[size];
+		}
+	}
+
+	private final Level[] levels = new Level[LEVELS];
+
+	public ClusterPyramid(LocationStore store, int[] storeRows, int pointCount)
+	{
+		// sort the points by level 0 cell: cell key in the high bits, position in the low bits
+		long[] keyed = new long[pointCount];
+		for ( int i = 0; i < pointCount; i++ ) {
+			int row = storeRows[i];
+			long cell = cellKey(cellOf(store.lonE6[row] + 180000000L, BASE_CELL_E6), cellOf(store.latE6[row] + 90000000L, BASE_CELL_E6));
+			keyed[i] = (cell << 32) | i;
+		}
+		Arrays.sort(keyed);
+
+		long[] sumLat = new long[pointCount];
+		long[] sumLon = new long[pointCount];
+		long[] sumAcc = new long[pointCount];
+		int[]  counts = new int [pointCount];
+		int[]  xs     = new int [pointCount];
+		int[]  ys     = new int [pointCount];
+
+		int clusters = -1;
+		long lastCell = -1;
+		for ( int k = 0; k < pointCount; k++ ) {
+			long cell = keyed[k] >>> 32;
+			int  row  = storeRows[(int) keyed[k]];
+			if ( cell != lastCell ) {
+				clusters++;
+				lastCell = cell;
+				xs[clusters] = (int) (cell & 0xFFFF);
+				ys[clusters] = (int) (cell >>> 16);
+			}
+			sumLat[clusters] += store.latE6[row];
+			sumLon[clusters] += store.lonE6[row];
+			sumAcc[clusters] += store.accuracy[row];
+			counts[clusters]++;
+		}
+		clusters++;
+
+		levels[0] = toLevel(BASE_CELL_E6, clusters, sumLat, sumLon, sumAcc, counts, xs, ys);
+
+		for ( int l = 1; l < LEVELS; l++ ) {
+			levels[l] = mergeUp(levels[l - 1]);
+		}
+	}
+
+	/**
+	 * Smallest level whose cells are at least minCellPixels across at the given scale.
+	 */
+	public Level levelFor(double metersPerPixel, int minCellPixels)
+	{
+		for ( int l = 0; l < LEVELS; l++ ) {
+			double cellPixels = (levels[l].cellE6 / 1E6) * METERS_PER_DEGREE / metersPerPixel;
+			if ( cellPixels >= minCellPixels ) {
+				return levels[l];
+			}
+		}
+		return levels[LEVELS - 1];
+	}
+
+	public Level getLevel(int level)
+	{
+		return levels[level];
+	}
+
+	private static Level mergeUp(Level below)
+	{
+		// each cell above covers a 2x2 block of cells below
+		int n = below.size;
+		long[] keyed = new long[n];
+		for ( int i = 0; i < n; i++ ) {
+			keyed[i] = (cellKey(below.cellX[i] >> 1, below.cellY[i] >> 1) << 32) | i;
+		}
+		Arrays.sort(keyed);
+
+		long[] sumLat = new long[n];
+		long[] sumLon = new long[n];
+		long[] sumAcc = new long[n];
+		int[]  counts = new int [n];
+		int[]  xs     = new int [n];
+		int[]  ys     = new int [n];
+
+		int clusters = -1;
+		long lastCell = -1;
+		for ( int k = 0; k < n; k++ ) {
+			long cell = keyed[k] >>> 32;
+			int  i    = (int) keyed[k];
+			if ( cell != lastCell ) {
+				clusters++;
+				lastCell = cell;
+				xs[clusters] = (int) (cell & 0xFFFF);
+				ys[clusters] = (int) (cell >>> 16);
+			}
+			int c = below.count[i];
+			sumLat[clusters] += (long) below.latE6[i] * c;
+			sumLon[clusters] += (long) below.lonE6[i] * c;
+			sumAcc[clusters] += (long) below.meanAccuracy[i] * c;
+			counts[clusters] += c;
+		}
+		clusters++;
+
+		return toLevel(below.cellE6 * 2, clusters, sumLat, sumLon, sumAcc, counts, xs, ys);
+	}
+
+	private static Level toLevel(int cellE6, int clusters, long[] sumLat, long[] sumLon, long[] sumAcc, int[] counts, int[] xs, int[] ys)
+	{
+		Level level = new Level(cellE6, clusters);
+		for ( int c = 0; c < clusters; c++ ) {
+			level.latE6[c]        = (int) (sumLat[c] / counts[c]);
+			level.lonE6[c]        = (int) (sumLon[c] / counts[c]);
+			level.meanAccuracy[c] = (int) (sumAcc[c] / counts[c]);
+			level.count[c]        = counts[c];
+			level.cellX[c]        = xs[c];
+			level.cellY[c]        = ys[c];
+		}
+		return level;
+	}
+
+	private static int cellOf(long offsetE6, int cellE6)
+	{
+		return (int) Math.max(0, offsetE6 / cellE6);
+	}
+
+	private static long cellKey(int x, int y)
+	{
+		return ((long) y << 16) | x;
+	}
+}
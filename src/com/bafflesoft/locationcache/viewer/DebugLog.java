@@ -0,0 +1,29 @@
+package com.bafflesoft.locationcache.viewer;
+
+/**
+ * Logging for the classes that don't otherwise depend on Android (parsing, storage,
+ * export), so they can also run on a plain JVM. MainActivity installs an AndroidLogSink;
+ * until a sink is set, messages are dropped.
+ */
+public class DebugLog {
+	public interface Sink {
+		public void v(String tag, String message);
+		public void e(String tag, String message);
+	}
+
+	private static volatile Sink sink = null;
+
+	public static void setSink(Sink newSink) {
+		sink = newSink;
+	}
+
+	public static void v(String tag, String message) {
+		Sink s = sink;
+		if ( s != null ) s.v(tag, message);
+	}
+
+	public static void e(String tag, String message) {
+		Sink s = sink;
+		if ( s != null ) s.e(tag, message);
+	}
+}
@@ -0,0 +1,206 @@
+package com.bafflesoft.locationcache.viewer;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A reusable char buffer in front of a Writer, with the number, time and key formatting
+ * the export formats need written out by hand: nothing is allocated per point, unlike
+ * String.format, SimpleDateFormat or Double.toString.
+ */
+public class ExportBuffer {
+	public static final byte ESCAPE_NONE = 0;
+	public static final byte ESCAPE_XML  = 1;
+	public static final byte ESCAPE_JSON = 2;
+	public static final byte ESCAPE_CSV  = 3;
+
+	private static final int DEFAULT_SIZE = 16 * 1024;
+
+	private final Writer out;
+	private final char[] buf;
+	private int length = 0;
+
+	private byte[] key = new byte[32]; // appendKey's scratch
+
+	public ExportBuffer(Writer out) {
+		this(out, DEFAULT_SIZE);
+	}
+
+	public ExportBuffer(Writer out, int size) {
+		this.out = out;
+		this.buf = new char[Math.max(size, 256)];
+	}
+
+	public ExportBuffer append(String s) throws IOException {
+		int n = s.length();
+		if ( n > buf.length / 2 ) {
+			flush();
+			out.write(s);
+			return this;
+		}
+		ensure(n);
+		s.getChars(0, n, buf, length);
+		length += n;
+		return this;
+	}
+
+	public ExportBuffer append(char c) throws IOException {
+		ensure(1);
+		buf[length++] = c;
+		return this;
+	}
+
+	public ExportBuffer appendInt(long value) throws IOException {
+		ensure(20);
+		if ( value < 0 ) {
+			buf[length++] = '-';
+			if ( value == Long.MIN_VALUE ) {
+				// can't be negated; its last digit is 8
+				appendDigits(-(value / 10));
+				buf[length++] = '8';
+				return this;
+			}
+			value = -value;
+		}
+		appendDigits(value);
+		return this;
+	}
+
+	/**
+	 * A value in millionths of a degree as decimal degrees, always with six decimals.
+	 */
+	public ExportBuffer appendE6(int valueE6) throws IOException {
+		ensure(20);
+		long value = valueE6;
+		if ( value < 0 ) {
+			buf[length++] = '-';
+			value = -value;
+		}
+		appendDigits(value / 1000000);
+		buf[length++] = '.';
+		appendPadded((int) (value % 1000000), 6);
+		return this;
+	}
+
+	/**
+	 * UTC time as ISO 8601, e.g. 2011-04-20T13:45:01Z.
+	 */
+	public ExportBuffer appendIsoTime(long millis) throws IOException {
+		ensure(32);
+
+		long seconds = floorDiv(millis, 1000);
+		long days    = floorDiv(seconds, 86400);
+		int  secondOfDay = (int) (seconds - days * 86400);
+
+		// days since 1970-01-01 to year/month/day (proleptic Gregorian)
+		long z   = days + 719468;
+		long era = floorDiv(z, 146097);
+		int  dayOfEra  = (int) (z - era * 146097);
+		int  yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int  dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int  mp    = (5 * dayOfYear + 2) / 153;
+		int  day   = dayOfYear - (153 * mp + 2) / 5 + 1;
+		int  month = mp < 10 ? mp + 3 : mp - 9;
+		long year  = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+		if ( year < 0 ) {
+			buf[length++] = '-';
+			year = -year;
+		}
+		appendPadded(year, 4);
+		buf[length++] = '-';
+		appendPadded(month, 2);
+		buf[length++] = '-';
+		appendPadded(day, 2);
+		buf[length++] = 'T';
+		appendPadded(secondOfDay / 3600, 2);
+		buf[length++] = ':';
+		appendPadded((secondOfDay / 60) % 60, 2);
+		buf[length++] = ':';
+		appendPadded(secondOfDay % 60, 2);
+		buf[length++] = 'Z';
+		return this;
+	}
+
+	/**
+	 * The row's key, unpacked from the store without making a String, escaped for the
+	 * output format.
+	 */
+	public ExportBuffer appendKey(LocationStore store, int row, byte escape) throws IOException {
+		int keyLen = store.keyLength(row);
+		if ( keyLen > key.length ) key = new byte[keyLen];
+		store.copyKey(row, key, 0);
+
+		for ( int k = 0; k < keyLen; k++ ) {
+			char c = (char) (key[k] & 0xFF);
+			switch ( escape ) {
+				case ESCAPE_XML:
+					if      ( c == '&' )  { append("&amp;");  continue; }
+					else if ( c == '<' )  { append("&lt;");   continue; }
+					else if ( c == '>' )  { append("&gt;");   continue; }
+					else if ( c == '"' )  { append("&quot;"); continue; }
+					break;
+				case ESCAPE_JSON:
+					if ( c == '"' || c == '\\' ) { append('\\'); }
+					else if ( c < 0x20 ) {
+						append("\\u00");
+						append(Character.forDigit(c >> 4, 16));
+						append(Character.forDigit(c & 0xF, 16));
+						continue;
+					}
+					break;
+				case ESCAPE_CSV:
+					if ( c == '"' ) append('"');
+					break;
+			}
+			append(c);
+		}
+		return this;
+	}
+
+	/**
+	 * Writes out whatever is buffered. Doesn't flush the Writer itself.
+	 */
+	public void flush() throws IOException {
+		if ( length > 0 ) {
+			out.write(buf, 0, length);
+			length = 0;
+		}
+	}
+
+	private void ensure(int n) throws IOException {
+		if ( length + n > buf.length ) flush();
+	}
+
+	private void appendDigits(long value) {
+		int start = length;
+		do {
+			buf[length++] = (char) ('0' + (value % 10));
+			value /= 10;
+		} while ( value > 0 );
+		reverse(start, length - 1);
+	}
+
+	private void appendPadded(long value, int width) {
+		int start = length;
+		do {
+			buf[length++] = (char) ('0' + (value % 10));
+			value /= 10;
+		} while ( value > 0 || length - start < width );
+		reverse(start, length - 1);
+	}
+
+	private void reverse(int from, int to) {
+		while ( from < to ) {
+			char c = buf[from];
+			buf[from++] = buf[to];
+			buf[to--]   = c;
+		}
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		if ( (x % y != 0) && ((x < 0) != (y < 0)) ) q--;
+		return q;
+	}
+}
@@ -0,0 +1,151 @@
+package com.bafflesoft.locationcache.viewer;
+
+import java.io.IOException;
+
+/**
+ * One export file format: what goes before, for each and after the points. Exporter
+ * drives it; everything is written through an ExportBuffer.
+ */
+public abstract class ExportFormat {
+	public static final ExportFormat GPX     = new Gpx();
+	public static final ExportFormat KML     = new Kml();
+	public static final ExportFormat GEOJSON = new GeoJson();
+	public static final ExportFormat CSV     = new Csv();
+
+	public static final ExportFormat[] ALL = { GPX, KML, GEOJSON, CSV };
+
+	public final String name;
+	public final String extension;
+
+	protected ExportFormat(String name, String extension) {
+		this.name      = name;
+		this.extension = extension;
+	}
+
+	public abstract void begin(ExportBuffer out, int count, String exportedOn) throws IOException;
+
+	/**
+	 * index is the number of points written before this one.
+	 */
+	public abstract void point(ExportBuffer out, LocationStore points, int row, int index) throws IOException;
+
+	public abstract void end(ExportBuffer out) throws IOException;
+
+	/**
+	 * GPX waypoints.
+	 */
+	static class Gpx extends ExportFormat {
+		Gpx() {
+			super("GPX", "gpx");
+		}
+
+		@Override
+		public void begin(ExportBuffer out, int count, String exportedOn) throws IOException {
+			out.append("<gpx xmlns=\"http://www.topografix.com/GPX/1/1\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" version=\"1.1\" xsi:schemaLocation=\"http://www.topografix.com/GPX/1/1 http://www.topografix.com/GPX/1/1/gpx.xsd\" creator=\"Android Location Cache Viewer\">\n");
+			out.append("<metadata>\n");
+			out.append("<name>Android Location Cache</name>\n");
+			out.append("<desc>Exported on ").append(exportedOn).append(" Total Points: ").appendInt(count).append("</desc></metadata>\n");
+		}
+
+		@Override
+		public void point(ExportBuffer out, LocationStore points, int row, int index) throws IOException {
+			out.append("<wpt lat=\"").appendE6(points.latE6[row]).append("\" lon=\"").appendE6(points.lonE6[row]).append("\"><time>");
+			out.appendIsoTime(points.timestamp[row]).append("</time><name>");
+			out.appendKey(points, row, ExportBuffer.ESCAPE_XML).append("</name><desc>type: ").append(points.getTypeName(row));
+			out.append(", accuracy: ").appendInt(points.accuracy[row]).append(", confidence: ").appendInt(points.confidence[row]);
+			out.append("</desc></wpt>\n");
+		}
+
+		@Override
+		public void end(ExportBuffer out) throws IOException {
+			out.append("</gpx>");
+		}
+	}
+
+	/**
+	 * KML placemarks, with the time as a TimeStamp so Google Earth's time slider works.
+	 */
+	static class Kml extends ExportFormat {
+		Kml() {
+			super("KML", "kml");
+		}
+
+		@Override
+		public void begin(ExportBuffer out, int count, String exportedOn) throws IOException {
+			out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			out.append("<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document>\n");
+			out.append("<name>Android Location Cache</name>\n");
+			out.append("<description>Exported on ").append(exportedOn).append(" Total Points: ").appendInt(count).append("</description>\n");
+		}
+
+		@Override
+		public void point(ExportBuffer out, LocationStore points, int row, int index) throws IOException {
+			out.append("<Placemark><name>").appendKey(points, row, ExportBuffer.ESCAPE_XML).append("</name>");
+			out.append("<description>type: ").append(points.getTypeName(row));
+			out.append(", accuracy: ").appendInt(points.accuracy[row]).append(", confidence: ").appendInt(points.confidence[row]).append("</description>");
+			out.append("<TimeStamp><when>").appendIsoTime(points.timestamp[row]).append("</when></TimeStamp>");
+			out.append("<Point><coordinates>").appendE6(points.lonE6[row]).append(',').appendE6(points.latE6[row]).append("</coordinates></Point></Placemark>\n");
+		}
+
+		@Override
+		public void end(ExportBuffer out) throws IOException {
+			out.append("</Document></kml>\n");
+		}
+	}
+
+	/**
+	 * A GeoJSON FeatureCollection of points.
+	 */
+	static class GeoJson extends ExportFormat {
+		GeoJson() {
+			super("GeoJSON", "geojson");
+		}
+
+		@Override
+		public void begin(ExportBuffer out, int count, String exportedOn) throws IOException {
+			out.append("{\"type\":\"FeatureCollection\",\"features\":[\n");
+		}
+
+		@Override
+		public void point(ExportBuffer out, LocationStore points, int row, int index) throws IOException {
+			if ( index > 0 ) out.append(",\n");
+			out.append("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[");
+			out.appendE6(points.lonE6[row]).append(',').appendE6(points.latE6[row]).append("]},\"properties\":{\"key\":\"");
+			out.appendKey(points, row, ExportBuffer.ESCAPE_JSON).append("\",\"type\":\"").append(points.getTypeName(row));
+			out.append("\",\"time\":\"").appendIsoTime(points.timestamp[row]);
+			out.append("\",\"accuracy\":").appendInt(points.accuracy[row]).append(",\"confidence\":").appendInt(points.confidence[row]).append("}}");
+		}
+
+		@Override
+		public void end(ExportBuffer out) throws IOException {
+			out.append("\n]}\n");
+		}
+	}
+
+	/**
+	 * Comma separated values with a header row.
+	 */
+	static class Csv extends ExportFormat {
+		Csv() {
+			super("CSV", "csv");
+		}
+
+		@Override
+		public void begin(ExportBuffer out, int count, String exportedOn) throws IOException {
+			out.append("type,key,latitude,longitude,accuracy,confidence,time\n");
+		}
+
+		@Override
+		public void point(ExportBuffer out, LocationStore points, int row, int index) throws IOException {
+			out.append(points.getTypeName(row)).append(",\"");
+			out.appendKey(points, row, ExportBuffer.ESCAPE_CSV).append("\",");
+			out.appendE6(points.latE6[row]).append(',').appendE6(points.lonE6[row]).append(',');
+			out.appendInt(points.accuracy[row]).append(',').appendInt(points.confidence[row]).append(',');
+			out.appendIsoTime(points.timestamp[row]).append('\n');
+		}
+
+		@Override
+		public void end(ExportBuffer out) throws IOException {
+		}
+	}
+}
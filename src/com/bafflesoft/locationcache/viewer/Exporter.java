@@ -0,0 +1,49 @@
+package com.bafflesoft.locationcache.viewer;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes points out in one of the ExportFormats, reporting progress as it goes.
+ */
+public class Exporter {
+	private static final int PROGRESS_EVERY = 4096; // points
+
+	public interface Progress {
+		/**
+		 * @return false to stop the export
+		 */
+		public boolean onProgress(int done, int total);
+	}
+
+	/**
+	 * Writes the rows in the given order. Rows with a negative accuracy or confidence
+	 * aren't real readings and are left out.
+	 *
+	 * @return the number of points written, or -1 if progress cancelled the export
+	 */
+	public static int export(Writer out, LocationStore points, int[] order, ExportFormat format, String exportedOn, Progress progress) throws IOException
+	{
+		ExportBuffer buffer = new ExportBuffer(out);
+		format.begin(buffer, order.length, exportedOn);
+
+		int written = 0;
+		for ( int i = 0; i < order.length; i++ ) {
+			if ( progress != null && i % PROGRESS_EVERY == 0 && !progress.onProgress(i, order.length) ) {
+				buffer.flush();
+				return -1;
+			}
+
+			int row = order[i];
+			if ( points.accuracy[row] >= 0 && points.confidence[row] >= 0 ) {
+				format.point(buffer, points, row, written++);
+			}
+		}
+
+		format.end(buffer);
+		buffer.flush();
+		if ( progress != null ) progress.onProgress(order.length, order.length);
+
+		return written;
+	}
+}
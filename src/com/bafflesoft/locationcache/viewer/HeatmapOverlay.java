@@ -0,0 +1,332 @@
+package com.bafflesoft.locationcache.viewer;
+
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.os.AsyncTask;
+
+import com.google.android.maps.GeoPoint;
+import com.google.android.maps.MapView;
+import com.google.android.maps.Overlay;
+import com.google.android.maps.Projection;
+
+/**
+ * Density of the loaded points, weighted by accuracy and confidence, rasterized into a
+ * bitmap on a background thread. The bitmap covers the screen plus a margin on each side,
+ * so panning just moves it; it's only rendered again once the view leaves the covered area
+ * or the zoom level changes. Renders look the points up in a spatial index, built by the
+ * first one, and draw into the previous bitmap when it's the same size.
+ */
+public class HeatmapOverlay extends Overlay {
+	private static final int   CELL_PX   = 4;    // screen pixels per heatmap pixel
+	private static final int   BLUR_RADIUS = 2;  // in heatmap pixels
+	private static final int   MAX_ALPHA = 170;
+	private static final int   LON_MAX   = 180000000;
+	private static final int   LON_WORLD = 2 * LON_MAX;
+
+	private LocationStore store = null;
+
+	// the store's rows with a location and an index over them, built by the first render
+	private int[]        indexRows = null;
+	private SpatialIndex index     = null;
+
+	private Bitmap bitmap        = null;
+	private Bitmap spare         = null; // the last bitmap shown, drawn into by the next render
+	private int    renderedZoom  = -1;
+	private int    renderedNorth, renderedSouth, renderedWest;
+	private int    renderedSpan;                 // longitude covered east of renderedWest, can cross the date line
+	private int    renderedWidth, renderedHeight; // screen pixels covered at renderedZoom
+
+	private RenderTask pending = null;
+
+	// used by the render that's running, there's only ever one
+	private float[] density = new float[0];
+	private float[] scratch = new float[0];
+	private int[]   pixels  = new int[0];
+	private int[]   found   = new int[0];
+
+	private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private final Point ptTopLeft   = new Point();
+	private final Rect  dst         = new Rect();
+
+	public void setStore(LocationStore store) {
+		this.store = store;
+		this.index = null;
+		this.indexRows = null;
+		if ( bitmap != null ) {
+			keepSpare(bitmap);
+			bitmap = null;
+		}
+		this.renderedZoom = -1;
+	}
+
+	@Override
+	public void draw(Canvas canvas, MapView mapView, boolean shadow) {
+		if ( shadow || store == null ) return;
+
+		int width  = mapView.getWidth();
+		int height = mapView.getHeight();
+		if ( width == 0 || height == 0 ) return;
+
+		Projection projection = mapView.getProjection();
+		int zoom = mapView.getZoomLevel();
+
+		GeoPoint topLeft     = projection.fromPixels(0, 0);
+		GeoPoint bottomRight = projection.fromPixels(width, height);
+
+		// longitudes as distances east of the rendered area's west edge, so the date line doesn't matter
+		int left  = eastOf(renderedWest, topLeft.getLongitudeE6());
+		int right = eastOf(renderedWest, bottomRight.getLongitudeE6());
+
+		boolean covered = bitmap != null && zoom == renderedZoom
+			&& topLeft.getLatitudeE6() <= renderedNorth && bottomRight.getLatitudeE6() >= renderedSouth
+			&& left <= right && right <= renderedSpan;
+
+		if ( !covered && pending == null ) {
+			// render the screen plus half a screen on every side
+			GeoPoint north = projection.fromPixels(-width / 2,    -height / 2);
+			GeoPoint south = projection.fromPixels(width * 3 / 2, height * 3 / 2);
+
+			int west = north.getLongitudeE6();
+			int span = eastOf(west, south.getLongitudeE6());
+			if ( span == 0 ) span = LON_WORLD;
+
+			pending = new RenderTask(store, indexRows, index, spare, mapView, zoom,
+					north.getLatitudeE6(), south.getLatitudeE6(), west, span, width * 2, height * 2);
+			spare = null;
+			pending.execute((Void[]) null);
+		}
+
+		if ( bitmap != null ) {
+			// placed from the view's own corner, which is never across the date line from it
+			double scale = Math.pow(2, zoom - renderedZoom);
+			double pixelsPerE6 = renderedWidth * scale / renderedSpan;
+			int offset = left > LON_MAX ? left - LON_WORLD : left;
+
+			projection.toPixels(new GeoPoint(renderedNorth, topLeft.getLongitudeE6()), ptTopLeft);
+			int x = (int) Math.round(-offset * pixelsPerE6);
+			dst.set(x, ptTopLeft.y, x + (int) (renderedWidth * scale), ptTopLeft.y + (int) (renderedHeight * scale));
+
+			canvas.drawBitmap(bitmap, null, dst, bitmapPaint);
+		}
+	}
+
+	/**
+	 * Holds on to a bitmap that's no longer shown for the next render, or frees it.
+	 */
+	private void keepSpare(Bitmap unused) {
+		if ( spare == null ) {
+			spare = unused;
+		} else {
+			unused.recycle();
+		}
+	}
+
+	private class RenderTask extends AsyncTask<Void, Void, Bitmap> {
+		private final LocationStore source;
+		private final MapView mapView;
+		private final int zoom;
+		private final int north, south, west, span;
+		private final int screenWidth, screenHeight;
+		private final int width, height;
+
+		private int[]        rows;
+		private SpatialIndex located;
+		private Bitmap       target;
+
+		RenderTask(LocationStore source, int[] rows, SpatialIndex located, Bitmap target, MapView mapView, int zoom,
+				int north, int south, int west, int span, int screenWidth, int screenHeight) {
+			this.source  = source;
+			this.rows    = rows;
+			this.located = located;
+			this.target  = target;
+			this.mapView = mapView;
+			this.zoom    = zoom;
+			this.north   = north;
+			this.south   = south;
+			this.west    = west;
+			this.span    = span;
+			this.screenWidth  = screenWidth;
+			this.screenHeight = screenHeight;
+			this.width   = Math.max(1, screenWidth  / CELL_PX);
+			this.height  = Math.max(1, screenHeight / CELL_PX);
+		}
+
+		@Override
+		protected Bitmap doInBackground(Void... params) {
+			if ( located == null ) {
+				rows = new int[source.size()];
+				int count = 0;
+				for ( int i = 0; i < source.size(); i++ ) {
+					if ( source.hasLocation(i) ) rows[count++] = i;
+				}
+				located = new SpatialIndex(source, rows, count);
+			}
+			if ( found.length < rows.length ) found = new int[rows.length];
+
+			int cells = width * height;
+			if ( density.length < cells ) {
+				density = new float[cells];
+				scratch = new float[cells];
+				pixels  = new int[cells];
+			} else {
+				Arrays.fill(density, 0, cells, 0f);
+			}
+
+			// an area across the date line is the two spans either side of it
+			long east = (long) west + span;
+			addPoints(west, Math.min(east, LON_MAX));
+			if ( east > LON_MAX ) {
+				addPoints(-LON_MAX, east - LON_WORLD);
+			}
+
+			blur(density, scratch, width, height);
+
+			float max = 0;
+			for ( int p = 0; p < cells; p++ ) {
+				max = Math.max(max, density[p]);
+			}
+
+			double logMax = Math.log(1 + max);
+			for ( int p = 0; p < cells; p++ ) {
+				pixels[p] = density[p] > 0 ? colorFor((float) (Math.log(1 + density[p]) / logMax)) : 0;
+			}
+
+			Bitmap result = target;
+			if ( result == null || result.getWidth() != width || result.getHeight() != height ) {
+				if ( result != null ) result.recycle();
+				result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			}
+			result.setPixels(pixels, 0, width, 0, 0, width, height);
+			return result;
+		}
+
+		/**
+		 * Adds the density of the points between the two longitudes.
+		 */
+		private void addPoints(long lonLow, long lonHigh) {
+			double yNorth = mercatorY(north);
+			double ySouth = mercatorY(south);
+			double xScale = width  / (double) span;
+			double yScale = height / (yNorth - ySouth);
+
+			int n = located.query(south, north, lonLow, lonHigh, found);
+			for ( int k = 0; k < n; k++ ) {
+				int i = rows[found[k]];
+
+				int lat = source.latE6[i];
+				int lon = source.lonE6[i];
+				if ( lat > north || lat < south || lon < lonLow || lon > lonHigh ) continue;
+
+				int x = (int) (eastOf(west, lon) * xScale);
+				int y = (int) ((yNorth - mercatorY(lat)) * yScale);
+				if ( x < 0 || x >= width || y < 0 || y >= height ) continue;
+
+				density[y * width + x] += weight(source.accuracy[i], source.confidence[i]);
+			}
+		}
+
+		@Override
+		protected void onPostExecute(Bitmap result) {
+			pending = null;
+
+			// the points were reloaded while this was rendering
+			if ( source != store ) {
+				keepSpare(result);
+				mapView.invalidate();
+				return;
+			}
+
+			indexRows = rows;
+			index     = located;
+
+			if ( bitmap != null ) keepSpare(bitmap);
+			bitmap         = result;
+			renderedZoom   = zoom;
+			renderedNorth  = north;
+			renderedSouth  = south;
+			renderedWest   = west;
+			renderedSpan   = span;
+			renderedWidth  = screenWidth;
+			renderedHeight = screenHeight;
+
+			mapView.invalidate();
+		}
+	}
+
+	/**
+	 * How far east of west the longitude is, from 0 up to but not including all the way round.
+	 */
+	private static int eastOf(int west, int lonE6) {
+		long east = (long) lonE6 - west;
+		return (int) (east < 0 ? east + LON_WORLD : east);
+	}
+
+	/**
+	 * Confident readings with a small accuracy radius count for more.
+	 */
+	private static float weight(int accuracy, int confidence) {
+		float c = Math.max(1, Math.min(100, confidence)) / 100f;
+		return c * 100f / (100f + Math.max(0, accuracy));
+	}
+
+	private static double mercatorY(int latE6) {
+		double lat = Math.toRadians(Math.max(-85000000, Math.min(85000000, latE6)) / 1E6);
+		return Math.log(Math.tan(Math.PI / 4 + lat / 2));
+	}
+
+	/**
+	 * Two passes of a separable box blur so single points show up as soft spots.
+	 */
+	private static void blur(float[] values, float[] scratch, int width, int height) {
+		float scale = 1f / (2 * BLUR_RADIUS + 1);
+
+		for ( int pass = 0; pass < 2; pass++ ) {
+			for ( int y = 0; y < height; y++ ) {
+				int row = y * width;
+				float sum = 0;
+				for ( int x = -BLUR_RADIUS; x < width + BLUR_RADIUS; x++ ) {
+					int add = x + BLUR_RADIUS, remove = x - BLUR_RADIUS - 1;
+					if ( add    < width ) sum += values[row + add];
+					if ( remove >= 0    ) sum -= values[row + remove];
+					if ( x >= 0 && x < width ) scratch[row + x] = sum * scale;
+				}
+			}
+			for ( int x = 0; x < width; x++ ) {
+				float sum = 0;
+				for ( int y = -BLUR_RADIUS; y < height + BLUR_RADIUS; y++ ) {
+					int add = y + BLUR_RADIUS, remove = y - BLUR_RADIUS - 1;
+					if ( add    < height ) sum += scratch[add    * width + x];
+					if ( remove >= 0     ) sum -= scratch[remove * width + x];
+					if ( y >= 0 && y < height ) values[y * width + x] = sum * scale;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Blue through green and yellow to red, fading in with intensity.
+	 */
+	private static int colorFor(float intensity) {
+		intensity = Math.max(0, Math.min(1, intensity));
+
+		int r, g, b;
+		if ( intensity < 0.33f ) {
+			float t = intensity / 0.33f;
+			r = 0; g = (int) (255 * t); b = (int) (255 * (1 - t));
+		} else if ( intensity < 0.66f ) {
+			float t = (intensity - 0.33f) / 0.33f;
+			r = (int) (255 * t); g = 255; b = 0;
+		} else {
+			float t = (intensity - 0.66f) / 0.34f;
+			r = 255; g = (int) (255 * (1 - t)); b = 0;
+		}
+		int a = (int) (MAX_ALPHA * Math.min(1f, 0.3f + intensity));
+
+		return (a << 24) | (r << 16) | (g << 8) | b;
+	}
+}
@@ -0,0 +1,543 @@
+package com.bafflesoft.locationcache.viewer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Every location ever loaded, kept in an append-only file so readings the system has
+ * since dropped from its cache aren't lost. Each load appends a segment holding just the
+ * records the history doesn't have yet, matched on type, key and timestamp:
+ *
+ *   int magic, int length, int record count, long cutoff,
+ *   LocationArchive of length bytes (not deflated)
+ *
+ * The newest records are at the end, so showing recent history only reads the last few
+ * segments. Once there are too many segments, or more than maxRecords records, the file
+ * is compacted down to the newest maxRecords records, which bounds its size. Records
+ * older than the cutoff were dropped by a compaction and aren't taken again. A segment
+ * cut short by a crash is dropped at the next append.
+ *
+ * Beside the history is a file of record fingerprints (see fingerprint()), each segment's
+ * sorted, in segment order. Appending looks the load's records up in it with a binary
+ * search per segment, so it reads only the few pages those searches touch rather than
+ * the whole history. If it doesn't match the history - a crash between the two writes -
+ * it's rebuilt from the history. Nothing but the segment offsets is kept between calls;
+ * compacting reads the history through one record at a time.
+ */
+public class HistoryStore {
+	private static final String TAG = "LocationCacheViewer";
+
+	private static final int SEGMENT_MAGIC = 0x4C434832; // "LCH2"
+	private static final int HEADER_LENGTH = 20;
+	private static final int MAX_SEGMENTS  = 32;
+
+	// compaction writes segments of about this many records, so no one read holds more
+	private static final int COMPACT_SEGMENT_RECORDS = 32 * 1024;
+
+	private final File file;
+	private final File printsFile;
+	private final int  maxRecords;
+
+	// file offsets, lengths and record counts of the complete segments, and where the last of them ends
+	private long[] segments       = new long[MAX_SEGMENTS + 1];
+	private int[]  segmentLengths = new int[MAX_SEGMENTS + 1];
+	private int[]  segmentSizes   = new int[MAX_SEGMENTS + 1];
+	private int    segmentCount   = 0;
+	private long   validLength    = 0;
+	private int    recordCount    = 0;
+	private long   cutoff         = Long.MIN_VALUE;
+	private boolean scanned       = false;
+
+	public HistoryStore(File file, int maxRecords) {
+		this.file       = file;
+		this.printsFile = new File(file.getPath() + ".prints");
+		this.maxRecords = maxRecords;
+	}
+
+	/**
+	 * Adds the store's records that aren't in the history yet.
+	 *
+	 * @return how many were added
+	 */
+	public synchronized int append(LocationStore points) throws IOException
+	{
+		scan();
+		checkPrints();
+
+		// the load's candidates, repeats within it dropped, then struck off if the history has them
+		Fingerprints fresh = new Fingerprints(points.size());
+		long[] prints = new long[points.size()];
+		byte[] key = new byte[32];
+		for ( int i = 0; i < points.size(); i++ ) {
+			if ( points.timestamp[i] < cutoff ) continue;
+
+			if ( points.keyLength(i) > key.length ) key = new byte[points.keyLength(i)];
+			int keyLen = points.copyKey(i, key, 0);
+			prints[i] = fingerprint(points.type[i], key, keyLen, points.timestamp[i]);
+			fresh.add(prints[i], i);
+		}
+		if ( fresh.size() > 0 && recordCount > 0 ) {
+			FileInputStream in = new FileInputStream(printsFile);
+			try {
+				LongBuffer known = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, recordCount * 8L).asLongBuffer();
+				for ( int i = 0; i < points.size(); i++ ) {
+					if ( fresh.contains(i) && isKnown(known, prints[i]) ) fresh.remove(prints[i]);
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		LocationStore added = new LocationStore(fresh.size());
+		for ( int i = 0; i < points.size(); i++ ) {
+			if ( fresh.contains(i) ) added.add(points, i);
+		}
+		if ( added.size() == 0 ) return 0;
+
+		writeSegment(added, file, printsFile);
+		if ( segmentCount >= MAX_SEGMENTS || recordCount > maxRecords ) {
+			compact();
+		}
+		DebugLog.v(TAG, "history - added " + added.size() + " of " + points.size() + ", " + recordCount + " in " + segmentCount + " segments");
+
+		return added.size();
+	}
+
+	/**
+	 * The newest records: whole segments from the end of the file until at least
+	 * minRecords have been read (or the history runs out), in the order they were added.
+	 */
+	public synchronized LocationStore readTail(int minRecords) throws IOException
+	{
+		scan();
+
+		int from  = segmentCount;
+		int count = 0;
+		while ( from > 0 && count < minRecords ) {
+			count += segmentSizes[--from];
+		}
+
+		final LocationStore store = new LocationStore(count);
+		readSegments(from, new LocationArchive.RecordHandler() {
+			@Override
+			public void onRecord(byte type, byte[] key, int keyLength, int accuracy, int confidence, int latE6, int lonE6, long time) {
+				store.add(type, key, 0, keyLength, accuracy, confidence, latE6, lonE6, time);
+			}
+		});
+		return store;
+	}
+
+	/**
+	 * Rewrites the history as a few segments holding the newest maxRecords records. The
+	 * new cutoff is the oldest time kept; if several records share it and they don't all
+	 * fit, none of them are kept, so a later load can't bring any of them back.
+	 */
+	public synchronized void compact() throws IOException
+	{
+		scan();
+
+		final long[] times = new long[recordCount];
+		final int[]  read  = new int[1];
+		readSegments(0, new LocationArchive.RecordHandler() {
+			@Override
+			public void onRecord(byte type, byte[] key, int keyLength, int accuracy, int confidence, int latE6, int lonE6, long time) {
+				if ( read[0] < times.length ) times[read[0]++] = time;
+			}
+		});
+		Arrays.sort(times, 0, read[0]);
+
+		if ( read[0] > maxRecords ) {
+			int first = read[0] - maxRecords;
+			while ( first < read[0] && times[first] == times[first - 1] ) first++;
+			long oldest = first < read[0] ? times[first] : times[read[0] - 1] + 1;
+			cutoff = Math.max(cutoff, oldest);
+		}
+
+		final File temp       = new File(file.getPath() + ".tmp");
+		final File tempPrints = new File(printsFile.getPath() + ".tmp");
+		temp.delete();
+		tempPrints.delete();
+
+		final long keep = cutoff;
+		final int  chunk = Math.max(COMPACT_SEGMENT_RECORDS, maxRecords / (MAX_SEGMENTS / 2));
+		final LocationStore[] kept = { new LocationStore(Math.min(chunk, recordCount)) };
+		final IOException[] failed = new IOException[1];
+		// the old segments are read while the new ones are written in their place
+		long[] oldSegments = segments.clone();
+		int[]  oldLengths  = segmentLengths.clone();
+		int    oldCount    = segmentCount;
+		segmentCount = 0;
+		validLength  = 0;
+		recordCount  = 0;
+		try {
+			readSegments(oldSegments, oldLengths, 0, oldCount, new LocationArchive.RecordHandler() {
+				@Override
+				public void onRecord(byte type, byte[] key, int keyLength, int accuracy, int confidence, int latE6, int lonE6, long time) {
+					if ( time < keep || failed[0] != null ) return;
+
+					kept[0].add(type, key, 0, keyLength, accuracy, confidence, latE6, lonE6, time);
+					if ( kept[0].size() == chunk ) {
+						try {
+							writeSegment(kept[0], temp, tempPrints);
+						} catch ( IOException ex ) {
+							failed[0] = ex;
+						}
+						kept[0] = new LocationStore(chunk);
+					}
+				}
+			});
+			if ( failed[0] != null ) throw failed[0];
+			if ( kept[0].size() > 0 || segmentCount == 0 ) {
+				writeSegment(kept[0], temp, tempPrints);
+			}
+		} catch ( IOException ex ) {
+			temp.delete();
+			tempPrints.delete();
+			scanned = false;
+			throw ex;
+		}
+
+		// without the old fingerprints a crash before the new ones are in place leaves none, not wrong ones
+		printsFile.delete();
+		if ( !temp.renameTo(file) ) {
+			temp.delete();
+			tempPrints.delete();
+			scanned = false;
+			throw new IOException("Unable to replace " + file);
+		}
+		if ( !tempPrints.renameTo(printsFile) ) {
+			tempPrints.delete(); // checkPrints() makes them again
+		}
+	}
+
+	/**
+	 * Whether the fingerprint is in one of the segments' sorted runs of fingerprints.
+	 */
+	private boolean isKnown(LongBuffer known, long print)
+	{
+		int start = 0;
+		for ( int s = 0; s < segmentCount; s++ ) {
+			int low = start, high = start + segmentSizes[s];
+			while ( low < high ) {
+				int mid = (low + high) >>> 1;
+				long value = known.get(mid);
+				if ( value == print ) return true;
+				if ( value < print ) low = mid + 1;
+				else                 high = mid;
+			}
+			start += segmentSizes[s];
+		}
+		return false;
+	}
+
+	/**
+	 * Makes the fingerprints file again from the history if it doesn't hold one per record.
+	 */
+	private void checkPrints() throws IOException
+	{
+		if ( printsFile.length() == recordCount * 8L ) return;
+
+		DebugLog.e(TAG, "history - fingerprints don't match, rebuilding them");
+		final long[] prints = new long[recordCount];
+		final int[]  read   = new int[1];
+		readSegments(0, new LocationArchive.RecordHandler() {
+			@Override
+			public void onRecord(byte type, byte[] key, int keyLength, int accuracy, int confidence, int latE6, int lonE6, long time) {
+				if ( read[0] < prints.length ) prints[read[0]++] = fingerprint(type, key, keyLength, time);
+			}
+		});
+		if ( read[0] < prints.length ) throw new IOException("History is truncated");
+
+		int start = 0;
+		for ( int s = 0; s < segmentCount; s++ ) {
+			Arrays.sort(prints, start, start + segmentSizes[s]);
+			start += segmentSizes[s];
+		}
+
+		File temp = new File(printsFile.getPath() + ".tmp");
+		writePrints(prints, recordCount, temp, false);
+		if ( !temp.renameTo(printsFile) ) {
+			temp.delete();
+			throw new IOException("Unable to replace " + printsFile);
+		}
+	}
+
+	/**
+	 * Finds the complete segments, trimming off a partly written one at the end.
+	 */
+	private void scan() throws IOException
+	{
+		if ( scanned ) return;
+
+		segmentCount = 0;
+		validLength  = 0;
+		recordCount  = 0;
+		cutoff       = Long.MIN_VALUE;
+		if ( file.exists() ) {
+			RandomAccessFile in = new RandomAccessFile(file, "rw");
+			try {
+				long length = in.length();
+				long offset = 0;
+				while ( offset + HEADER_LENGTH <= length ) {
+					in.seek(offset);
+					if ( in.readInt() != SEGMENT_MAGIC ) break;
+					int  archiveLength = in.readInt();
+					int  size          = in.readInt();
+					long segmentCutoff = in.readLong();
+					long end = offset + HEADER_LENGTH + (archiveLength & 0xFFFFFFFFL);
+					if ( end > length ) break;
+
+					addSegment(offset, archiveLength, size);
+					cutoff = Math.max(cutoff, segmentCutoff);
+					offset = end;
+				}
+				validLength = offset;
+				if ( validLength < length ) {
+					DebugLog.e(TAG, "history - dropping " + (length - validLength) + " bytes of incomplete segment");
+					in.setLength(validLength);
+				}
+			} finally {
+				in.close();
+			}
+		}
+		scanned = true;
+	}
+
+	private void addSegment(long offset, int length, int size)
+	{
+		if ( segmentCount == segments.length ) {
+			segments       = grow(segments,       segments.length * 2);
+			segmentLengths = grow(segmentLengths, segments.length);
+			segmentSizes   = grow(segmentSizes,   segments.length);
+		}
+		segments[segmentCount]       = offset;
+		segmentLengths[segmentCount] = length;
+		segmentSizes[segmentCount++] = size;
+		recordCount += size;
+	}
+
+	private void readSegments(int first, LocationArchive.RecordHandler handler) throws IOException
+	{
+		readSegments(segments, segmentLengths, first, segmentCount, handler);
+	}
+
+	/**
+	 * Hands every record in segments first to end - 1 to the handler, reading the file
+	 * through once.
+	 */
+	private void readSegments(long[] segments, int[] segmentLengths, int first, int end, LocationArchive.RecordHandler handler) throws IOException
+	{
+		if ( first >= end ) return;
+
+		FileInputStream in = new FileInputStream(file);
+		try {
+			in.getChannel().position(segments[first]);
+			for ( int s = first; s < end; s++ ) {
+				skipFully(in, HEADER_LENGTH);
+				LocationArchive.read(new SegmentInputStream(in, segmentLengths[s]), handler);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Appends the records to target as a segment, and their sorted fingerprints to
+	 * printsTarget. The segment goes first, so a crash can only leave the fingerprints short.
+	 */
+	private void writeSegment(LocationStore records, File target, File printsTarget) throws IOException
+	{
+		int[] order = records.sortedByTime();
+
+		ByteArrayOutputStream archive = new ByteArrayOutputStream(records.size() * 24 + 64);
+		LocationArchive.write(archive, records, order, false, null);
+
+		long[] prints = new long[records.size()];
+		byte[] key = new byte[32];
+		for ( int i = 0; i < records.size(); i++ ) {
+			if ( records.keyLength(i) > key.length ) key = new byte[records.keyLength(i)];
+			int keyLen = records.copyKey(i, key, 0);
+			prints[i] = fingerprint(records.type[i], key, keyLen, records.timestamp[i]);
+		}
+		Arrays.sort(prints);
+
+		FileOutputStream out = new FileOutputStream(target, true);
+		try {
+			byte[] header = new byte[HEADER_LENGTH];
+			putInt (header, 0,  SEGMENT_MAGIC);
+			putInt (header, 4,  archive.size());
+			putInt (header, 8,  records.size());
+			putLong(header, 12, cutoff);
+			out.write(header);
+			archive.writeTo(out);
+		} finally {
+			out.close();
+		}
+
+		addSegment(validLength, archive.size(), records.size());
+		validLength += HEADER_LENGTH + archive.size();
+
+		writePrints(prints, prints.length, printsTarget, true);
+	}
+
+	private static void writePrints(long[] prints, int count, File target, boolean append) throws IOException
+	{
+		ByteBuffer data = ByteBuffer.allocate(count * 8);
+		data.asLongBuffer().put(prints, 0, count);
+
+		FileOutputStream out = new FileOutputStream(target, append);
+		try {
+			FileChannel channel = out.getChannel();
+			while ( data.hasRemaining() ) {
+				channel.write(data);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void putInt(byte[] b, int offset, int value)
+	{
+		b[offset    ] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+
+	private static void putLong(byte[] b, int offset, long value)
+	{
+		putInt(b, offset,     (int) (value >>> 32));
+		putInt(b, offset + 4, (int) value);
+	}
+
+	private static void skipFully(InputStream in, long n) throws IOException
+	{
+		while ( n > 0 ) {
+			long skipped = in.skip(n);
+			if ( skipped <= 0 ) throw new IOException("History is truncated");
+			n -= skipped;
+		}
+	}
+
+	private static long[] grow(long[] arr, int capacity)
+	{
+		long[] grown = new long[capacity];
+		System.arraycopy(arr, 0, grown, 0, arr.length);
+		return grown;
+	}
+
+	private static int[] grow(int[] arr, int capacity)
+	{
+		int[] grown = new int[capacity];
+		System.arraycopy(arr, 0, grown, 0, arr.length);
+		return grown;
+	}
+
+	/**
+	 * 64 bit FNV-1a of the type, key and time. Two different records sharing one is so
+	 * unlikely that it's taken as a match.
+	 */
+	private static long fingerprint(byte type, byte[] key, int keyLength, long time)
+	{
+		long h = 0xcbf29ce484222325L;
+		h = (h ^ type) * 0x100000001b3L;
+		for ( int k = 0; k < keyLength; k++ ) {
+			h = (h ^ (key[k] & 0xFF)) * 0x100000001b3L;
+		}
+		for ( int shift = 0; shift < 64; shift += 8 ) {
+			h = (h ^ ((time >>> shift) & 0xFF)) * 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * Open addressing set of fingerprints, each with the store row it came from.
+	 */
+	private static class Fingerprints {
+		private final long[]    prints;
+		private final int[]     rows;    // row + 1; 0 is an empty slot
+		private final boolean[] present; // by row, cleared by remove()
+		private int size = 0;
+
+		Fingerprints(int rowCount) {
+			int capacity = 16;
+			while ( capacity < rowCount * 2 ) capacity <<= 1;
+			prints  = new long[capacity];
+			rows    = new int[capacity];
+			present = new boolean[rowCount];
+		}
+
+		int size() {
+			return size;
+		}
+
+		boolean contains(int row) {
+			return present[row];
+		}
+
+		void add(long print, int row) {
+			int slot = slot(print);
+			if ( rows[slot] != 0 ) return; // a repeat within the load
+
+			prints[slot] = print;
+			rows[slot]   = row + 1;
+			present[row] = true;
+			size++;
+		}
+
+		void remove(long print) {
+			int slot = slot(print);
+			if ( rows[slot] != 0 && present[rows[slot] - 1] ) {
+				present[rows[slot] - 1] = false;
+				size--;
+			}
+		}
+
+		private int slot(long print) {
+			int mask = prints.length - 1;
+			int slot = (int) (print ^ (print >>> 32)) & mask;
+			while ( rows[slot] != 0 && prints[slot] != print ) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+	}
+
+	/**
+	 * The next length bytes of the file, so an archive's read-ahead stops at its segment.
+	 */
+	private static class SegmentInputStream extends InputStream {
+		private final InputStream in;
+		private long remaining;
+
+		SegmentInputStream(InputStream in, long length) {
+			this.in        = in;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if ( remaining == 0 ) return -1;
+			int b = in.read();
+			if ( b >= 0 ) remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if ( remaining == 0 ) return -1;
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if ( n > 0 ) remaining -= n;
+			return n;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package com.bafflesoft.locationcache.viewer;
+
+/**
+ * Packs record keys into a long: a wifi BSSID like 00:1a:2b:3c:4d:5e is its 48 bit MAC
+ * address, a cell key like 310:410:9456:22617 is its mcc, mnc, lac and cid side by side.
+ * Keys are only packed when unpacking gives back exactly the same text, so anything
+ * unusual - leading zeros, mixed case, a -1 - isn't packed and NOT_PACKED is returned.
+ *
+ *   wifi: bit 48 set if the hex digits are upper case, MAC address in bits 0-47
+ *   cell: (mcc * 1000 + mnc) in bits 43-62, lac in bits 27-42, cid in bits 0-26
+ */
+public class KeyCodec {
+	public static final long NOT_PACKED = -1;
+
+	private static final int  WIFI_LENGTH = 17;
+	private static final long WIFI_UPPER  = 1L << 48;
+
+	private static final int CELL_LAC_SHIFT = 27;
+	private static final int CELL_NET_SHIFT = 43;
+	private static final int CELL_CID_MAX   = (1 << 27) - 1;
+	private static final int CELL_LAC_MAX   = (1 << 16) - 1;
+
+	private static final byte[] HEX_LOWER = "0123456789abcdef".getBytes();
+	private static final byte[] HEX_UPPER = "0123456789ABCDEF".getBytes();
+
+	public static long pack(byte type, byte[] key, int start, int length)
+	{
+		switch ( type ) {
+			case LocationStore.TYPE_WIFI: return packWifi(key, start, length);
+			case LocationStore.TYPE_CELL: return packCell(key, start, length);
+			default:                      return NOT_PACKED;
+		}
+	}
+
+	/**
+	 * Writes the key's text to dst at offset, which needs room for length(type, code).
+	 *
+	 * @return the number of bytes written
+	 */
+	public static int unpack(byte type, long code, byte[] dst, int offset)
+	{
+		if ( type == LocationStore.TYPE_WIFI ) {
+			byte[] hex = (code & WIFI_UPPER) != 0 ? HEX_UPPER : HEX_LOWER;
+			int p = offset;
+			for ( int shift = 40; shift >= 0; shift -= 8 ) {
+				int b = (int) (code >>> shift) & 0xFF;
+				dst[p++] = hex[b >> 4];
+				dst[p++] = hex[b & 0xF];
+				if ( shift > 0 ) dst[p++] = ':';
+			}
+			return WIFI_LENGTH;
+		}
+
+		int net = (int) (code >>> CELL_NET_SHIFT);
+		int p = offset;
+		p = putDecimal(net / 1000, dst, p);
+		dst[p++] = ':';
+		p = putDecimal(net % 1000, dst, p);
+		dst[p++] = ':';
+		p = putDecimal((int) (code >>> CELL_LAC_SHIFT) & CELL_LAC_MAX, dst, p);
+		dst[p++] = ':';
+		p = putDecimal((int) code & CELL_CID_MAX, dst, p);
+		return p - offset;
+	}
+
+	/**
+	 * The MAC address of a packed wifi key, whatever case its text was in. Ordering these
+	 * is the same as ordering the keys' lower case text.
+	 */
+	public static long wifiAddress(long code)
+	{
+		return code & (WIFI_UPPER - 1);
+	}
+
+	/**
+	 * Orders two packed cell keys the same as their text, without making it: fields are
+	 * compared by their leading digits, and when one field's text starts with the other's,
+	 * the shorter one is followed by a ':', which sorts after any digit, or ends the key.
+	 */
+	public static int compareCells(long a, long b)
+	{
+		for ( int field = 0; field < 4; field++ ) {
+			int x = cellField(a, field), y = cellField(b, field);
+			if ( x == y ) continue;
+
+			int dx = digits(x), dy = digits(y);
+			for ( int d = dx; d > dy; d-- ) x /= 10;
+			for ( int d = dy; d > dx; d-- ) y /= 10;
+			if ( x != y ) return x < y ? -1 : 1;
+
+			return (dx < dy) == (field == 3) ? -1 : 1;
+		}
+		return 0;
+	}
+
+	private static int cellField(long code, int field)
+	{
+		switch ( field ) {
+			case 0:  return (int) (code >>> CELL_NET_SHIFT) / 1000;
+			case 1:  return (int) (code >>> CELL_NET_SHIFT) % 1000;
+			case 2:  return (int) (code >>> CELL_LAC_SHIFT) & CELL_LAC_MAX;
+			default: return (int) code & CELL_CID_MAX;
+		}
+	}
+
+	public static int length(byte type, long code)
+	{
+		if ( type == LocationStore.TYPE_WIFI ) return WIFI_LENGTH;
+
+		int net = (int) (code >>> CELL_NET_SHIFT);
+		return 3 + digits(net / 1000) + digits(net % 1000)
+			+ digits((int) (code >>> CELL_LAC_SHIFT) & CELL_LAC_MAX) + digits((int) code & CELL_CID_MAX);
+	}
+
+	private static long packWifi(byte[] key, int start, int length)
+	{
+		if ( length != WIFI_LENGTH ) return NOT_PACKED;
+
+		long mac = 0;
+		int lower = 0, upper = 0;
+		for ( int i = 0; i < WIFI_LENGTH; i++ ) {
+			int c = key[start + i];
+			if ( i % 3 == 2 ) {
+				if ( c != ':' ) return NOT_PACKED;
+				continue;
+			}
+
+			int digit;
+			if      ( c >= '0' && c <= '9' ) { digit = c - '0'; }
+			else if ( c >= 'a' && c <= 'f' ) { digit = c - 'a' + 10; lower++; }
+			else if ( c >= 'A' && c <= 'F' ) { digit = c - 'A' + 10; upper++; }
+			else return NOT_PACKED;
+
+			mac = (mac << 4) | digit;
+		}
+		if ( lower > 0 && upper > 0 ) return NOT_PACKED;
+
+		return upper > 0 ? mac | WIFI_UPPER : mac;
+	}
+
+	private static long packCell(byte[] key, int start, int length)
+	{
+		long mcc = 0, mnc = 0, lac = 0, cid = 0;
+		int part = 0;
+		int digitsInPart = 0;
+		long value = 0;
+		for ( int i = start; i <= start + length; i++ ) {
+			int c = i < start + length ? key[i] : ':';
+			if ( c == ':' ) {
+				if ( digitsInPart == 0 ) return NOT_PACKED;
+				switch ( part++ ) {
+					case 0:  mcc = value; break;
+					case 1:  mnc = value; break;
+					case 2:  lac = value; break;
+					case 3:  cid = value; break;
+					default: return NOT_PACKED;
+				}
+				value = 0;
+				digitsInPart = 0;
+			} else if ( c >= '0' && c <= '9' ) {
+				// a leading zero wouldn't come back, and more than 9 digits can't fit anyway
+				if ( (digitsInPart == 1 && value == 0) || digitsInPart == 9 ) return NOT_PACKED;
+				value = value * 10 + (c - '0');
+				digitsInPart++;
+			} else {
+				return NOT_PACKED;
+			}
+		}
+		if ( part != 4 || mcc > 999 || mnc > 999 || lac > CELL_LAC_MAX || cid > CELL_CID_MAX ) {
+			return NOT_PACKED;
+		}
+
+		return ((mcc * 1000 + mnc) << CELL_NET_SHIFT) | (lac << CELL_LAC_SHIFT) | cid;
+	}
+
+	private static int putDecimal(int value, byte[] dst, int offset)
+	{
+		int end = offset + digits(value);
+		int p = end;
+		do {
+			dst[--p] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while ( value > 0 );
+		return end;
+	}
+
+	private static int digits(int value)
+	{
+		int n = 1;
+		while ( value >= 10 ) {
+			value /= 10;
+			n++;
+		}
+		return n;
+	}
+}
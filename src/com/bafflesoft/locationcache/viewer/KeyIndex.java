@@ -0,0 +1,209 @@
+package com.bafflesoft.locationcache.viewer;
+
+/**
+ * Store rows sorted by key, so a BSSID or cell id - or the start of one - is found with a
+ * binary search instead of a scan. Keys compare as text with case ignored. Sorting compares
+ * the first 8 characters of each key as one long, then packed wifi keys by their MAC address
+ * and packed cell keys field by field, which order the same way, so it rarely unpacks a key;
+ * searching unpacks one per step.
+ */
+public class KeyIndex {
+	private final LocationStore store;
+	private final int[]         storeRows;
+	private final int[]         sorted; // positions in storeRows, in key order
+
+	// key text for comparisons
+	private byte[] textA = new byte[32];
+	private byte[] textB = new byte[32];
+
+	/**
+	 * @param storeRows store index for each entry; the search results are positions in this array
+	 */
+	public KeyIndex(LocationStore store, int[] storeRows, int count)
+	{
+		this.store     = store;
+		this.storeRows = storeRows;
+
+		long[] heads = new long[count];
+		sorted = new int[count];
+		for ( int i = 0; i < count; i++ ) {
+			sorted[i] = i;
+			heads[i]  = head(storeRows[i]);
+		}
+		mergeSort(sorted, new int[count], heads, 0, count);
+	}
+
+	public int size()
+	{
+		return sorted.length;
+	}
+
+	/**
+	 * Position of the entry whose key is exactly key (case ignored), or -1.
+	 */
+	public int find(String key)
+	{
+		byte[] text = lowerCase(key);
+		int first = lowerBound(text);
+		if ( first == sorted.length ) return -1;
+
+		// a key that is the whole prefix sorts before the longer ones starting with it
+		int row = storeRows[sorted[first]];
+		return comparePrefix(row, text) == 0 && store.keyLength(row) == text.length ? sorted[first] : -1;
+	}
+
+	/**
+	 * Writes the positions of entries whose keys start with prefix (case ignored) to out,
+	 * in key order, stopping when out is full.
+	 *
+	 * @return how many keys start with prefix, which can be more than were written
+	 */
+	public int findPrefix(String prefix, int[] out)
+	{
+		byte[] text = lowerCase(prefix);
+		int first = lowerBound(text);
+
+		// the matches run up to the first key past the prefix
+		int low = first, high = sorted.length;
+		while ( low < high ) {
+			int mid = (low + high) >>> 1;
+			if ( comparePrefix(storeRows[sorted[mid]], text) > 0 ) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+
+		int matches = low - first;
+		for ( int i = 0; i < matches && i < out.length; i++ ) {
+			out[i] = sorted[first + i];
+		}
+		return matches;
+	}
+
+	/**
+	 * Index in sorted of the first key that isn't before the prefix.
+	 */
+	private int lowerBound(byte[] prefix)
+	{
+		int low = 0, high = sorted.length;
+		while ( low < high ) {
+			int mid = (low + high) >>> 1;
+			if ( comparePrefix(storeRows[sorted[mid]], prefix) < 0 ) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Negative if the row's key sorts before every key starting with prefix, zero if it
+	 * starts with prefix, positive if it sorts after them.
+	 */
+	private int comparePrefix(int row, byte[] prefix)
+	{
+		int length = keyText(row, 0);
+		for ( int k = 0; k < length && k < prefix.length; k++ ) {
+			int c = lower(textA[k]) - (prefix[k] & 0xFF);
+			if ( c != 0 ) return c;
+		}
+		return length < prefix.length ? -1 : 0;
+	}
+
+	/**
+	 * The first 8 characters of the row's key in lower case, big-endian, and shifted down
+	 * one bit so comparing two as signed longs orders them like their text.
+	 */
+	private long head(int row)
+	{
+		int length = keyText(row, 0);
+		long head = 0;
+		for ( int k = 0; k < 8; k++ ) {
+			head = (head << 8) | (k < length ? lower(textA[k]) : 0);
+		}
+		return head >>> 1;
+	}
+
+	private int compare(long[] heads, int a, int b)
+	{
+		// positions - equal heads can still differ after 8 characters, or in length
+		if ( heads[a] != heads[b] ) return heads[a] < heads[b] ? -1 : 1;
+		return compare(storeRows[a], storeRows[b]);
+	}
+
+	private int compare(int rowA, int rowB)
+	{
+		long codeA = store.keyCodes()[rowA], codeB = store.keyCodes()[rowB];
+		if ( codeA >= 0 && codeB >= 0 && store.type[rowA] == store.type[rowB] ) {
+			if ( store.type[rowA] == LocationStore.TYPE_CELL ) {
+				return KeyCodec.compareCells(codeA, codeB);
+			}
+			if ( store.type[rowA] == LocationStore.TYPE_WIFI ) {
+				long a = KeyCodec.wifiAddress(codeA), b = KeyCodec.wifiAddress(codeB);
+				return a < b ? -1 : (a == b ? 0 : 1);
+			}
+		}
+
+		int lengthA = keyText(rowA, 0);
+		int lengthB = keyText(rowB, 1);
+		for ( int k = 0; k < lengthA && k < lengthB; k++ ) {
+			int c = lower(textA[k]) - lower(textB[k]);
+			if ( c != 0 ) return c;
+		}
+		return lengthA - lengthB;
+	}
+
+	/**
+	 * Copies the row's key into textA (which 0) or textB (which 1).
+	 */
+	private int keyText(int row, int which)
+	{
+		int length = store.keyLength(row);
+		if ( which == 0 ) {
+			if ( length > textA.length ) textA = new byte[length];
+			return store.copyKey(row, textA, 0);
+		} else {
+			if ( length > textB.length ) textB = new byte[length];
+			return store.copyKey(row, textB, 0);
+		}
+	}
+
+	private void mergeSort(int[] order, int[] scratch, long[] heads, int from, int to)
+	{
+		if ( to - from < 2 ) return;
+
+		int mid = (from + to) >>> 1;
+		mergeSort(order, scratch, heads, from, mid);
+		mergeSort(order, scratch, heads, mid,  to);
+
+		if ( compare(heads, order[mid - 1], order[mid]) <= 0 ) return;
+
+		System.arraycopy(order, from, scratch, from, to - from);
+		int left = from, right = mid;
+		for ( int i = from; i < to; i++ ) {
+			if ( right >= to || (left < mid && compare(heads, scratch[left], scratch[right]) <= 0) ) {
+				order[i] = scratch[left++];
+			} else {
+				order[i] = scratch[right++];
+			}
+		}
+	}
+
+	private static int lower(byte b)
+	{
+		int c = b & 0xFF;
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+
+	private static byte[] lowerCase(String s)
+	{
+		byte[] text = new byte[s.length()];
+		for ( int i = 0; i < text.length; i++ ) {
+			char c = s.charAt(i);
+			text[i] = (byte) lower((byte) (c < 0x100 ? c : '?'));
+		}
+		return text;
+	}
+}
@@ -0,0 +1,317 @@
+package com.bafflesoft.locationcache.viewer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A compact binary file of locations for keeping and moving collections around, which
+ * can be imported back into the viewer. Records are stored in time order, and each
+ * one's time and coordinates are stored as the difference from the record before, as
+ * zigzag varints - consecutive readings are close together, so most take a byte or two.
+ *
+ *   int magic, byte version, byte flags (1 = the rest is deflated)
+ *   varint count
+ *   per record: byte type, varint key length, key,
+ *               varlong time delta, varint latitude delta, varint longitude delta,
+ *               varint accuracy, varint confidence
+ */
+public class LocationArchive {
+	public static final String NAME      = "Archive";
+	public static final String EXTENSION = "lca";
+
+	private static final int  MAGIC        = 0x4C435641; // "LCVA"
+	private static final byte VERSION      = 1;
+	private static final byte FLAG_DEFLATE = 1;
+
+	private static final int BUFFER_SIZE    = 64 * 1024;
+	private static final int PROGRESS_EVERY = 4096; // records
+
+	/**
+	 * Writes the rows in the given order, which should be time order (see
+	 * LocationStore.sortedByTime()); any order works, time order is just the smallest.
+	 *
+	 * @return the number of records written, or -1 if progress cancelled it
+	 */
+	public static int write(OutputStream out, LocationStore points, int[] order, boolean deflate, Exporter.Progress progress) throws IOException
+	{
+		VarintOutput header = new VarintOutput(out);
+		header.writeByte(MAGIC >>> 24);
+		header.writeByte(MAGIC >>> 16);
+		header.writeByte(MAGIC >>> 8);
+		header.writeByte(MAGIC);
+		header.writeByte(VERSION);
+		header.writeByte(deflate ? FLAG_DEFLATE : 0);
+		header.flush();
+
+		Deflater deflater = null;
+		DeflaterOutputStream deflated = null;
+		if ( deflate ) {
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+			deflated = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+		}
+
+		try {
+			VarintOutput body = new VarintOutput(deflate ? deflated : out);
+			body.writeVarLong(order.length);
+
+			byte[] key = new byte[64];
+
+			long previousTime = 0;
+			int  previousLat  = 0;
+			int  previousLon  = 0;
+			for ( int i = 0; i < order.length; i++ ) {
+				if ( progress != null && i % PROGRESS_EVERY == 0 && !progress.onProgress(i, order.length) ) {
+					return -1;
+				}
+
+				int row = order[i];
+				int keyLen = points.keyLength(row);
+				if ( keyLen > key.length ) key = new byte[keyLen];
+				points.copyKey(row, key, 0);
+
+				body.writeByte(points.type[row]);
+				body.writeVarLong(keyLen);
+				body.write(key, 0, keyLen);
+				body.writeVarLong(zigzag(points.timestamp[row] - previousTime));
+				body.writeVarLong(zigzag((long) points.latE6[row] - previousLat));
+				body.writeVarLong(zigzag((long) points.lonE6[row] - previousLon));
+				body.writeVarLong(zigzag(points.accuracy[row]));
+				body.writeVarLong(zigzag(points.confidence[row]));
+
+				previousTime = points.timestamp[row];
+				previousLat  = points.latE6[row];
+				previousLon  = points.lonE6[row];
+			}
+			body.flush();
+
+			if ( deflate ) deflated.finish();
+			if ( progress != null ) progress.onProgress(order.length, order.length);
+
+			return order.length;
+		} finally {
+			if ( deflater != null ) deflater.end();
+		}
+	}
+
+	public static abstract class RecordHandler {
+		/**
+		 * Called once with the number of records, before the first.
+		 */
+		public void start(long count) { }
+
+		public abstract void onRecord(byte type, byte[] key, int keyLength, int accuracy, int confidence, int latE6, int lonE6, long time);
+	}
+
+	/**
+	 * Reads an archive back into a new store, rows in the order they were written.
+	 */
+	public static LocationStore read(InputStream in) throws IOException
+	{
+		final LocationStore[] store = new LocationStore[1];
+		read(in, new RecordHandler() {
+			@Override
+			public void start(long count) {
+				store[0] = new LocationStore((int) Math.min(count, 1 << 20));
+			}
+
+			@Override
+			public void onRecord(byte type, byte[] key, int keyLength, int accuracy, int confidence, int latE6, int lonE6, long time) {
+				store[0].add(type, key, 0, keyLength, accuracy, confidence, latE6, lonE6, time);
+			}
+		});
+		return store[0];
+	}
+
+	/**
+	 * Hands each record to the handler as it's read, without keeping them. The key buffer
+	 * is reused for the next record.
+	 *
+	 * @return the number of records
+	 */
+	public static long read(InputStream in, RecordHandler handler) throws IOException
+	{
+		VarintInput header = new VarintInput(in);
+		int magic = (header.readByte() << 24) | (header.readByte() << 16) | (header.readByte() << 8) | header.readByte();
+		if ( magic != MAGIC ) {
+			throw new IOException("Not a location archive");
+		}
+		int version = header.readByte();
+		if ( version != VERSION ) {
+			throw new IOException("Unsupported location archive version " + version);
+		}
+		boolean deflate = (header.readByte() & FLAG_DEFLATE) != 0;
+
+		Inflater inflater = null;
+		VarintInput body = header;
+		if ( deflate ) {
+			inflater = new Inflater();
+			body = new VarintInput(new InflaterInputStream(header.remaining(), inflater, BUFFER_SIZE));
+		}
+
+		try {
+			long count = body.readVarLong();
+			if ( count < 0 || count > Integer.MAX_VALUE ) {
+				throw new IOException("Bad record count " + count);
+			}
+			handler.start(count);
+
+			byte[] key = new byte[64];
+
+			long time = 0;
+			int  lat  = 0;
+			int  lon  = 0;
+			for ( long i = 0; i < count; i++ ) {
+				byte type   = (byte) body.readByte();
+				int  keyLen = (int) body.readVarLong();
+				if ( keyLen < 0 || keyLen > 0xFFFF ) {
+					throw new IOException("Bad key length " + keyLen);
+				}
+				if ( keyLen > key.length ) key = new byte[keyLen];
+				body.readFully(key, keyLen);
+
+				time += unzigzag(body.readVarLong());
+				lat  += (int) unzigzag(body.readVarLong());
+				lon  += (int) unzigzag(body.readVarLong());
+				int accuracy   = (int) unzigzag(body.readVarLong());
+				int confidence = (int) unzigzag(body.readVarLong());
+
+				handler.onRecord(type, key, keyLen, accuracy, confidence, lat, lon, time);
+			}
+			return count;
+		} finally {
+			if ( inflater != null ) inflater.end();
+		}
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Buffered byte and varint output; nothing is written to the stream until it's full
+	 * or flushed.
+	 */
+	private static class VarintOutput {
+		private final OutputStream out;
+		private final byte[] buf = new byte[BUFFER_SIZE];
+		private int length = 0;
+
+		VarintOutput(OutputStream out) {
+			this.out = out;
+		}
+
+		void writeByte(int b) throws IOException {
+			if ( length == buf.length ) flush();
+			buf[length++] = (byte) b;
+		}
+
+		void writeVarLong(long value) throws IOException {
+			if ( length + 10 > buf.length ) flush();
+			while ( (value & ~0x7FL) != 0 ) {
+				buf[length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buf[length++] = (byte) value;
+		}
+
+		void write(byte[] b, int offset, int len) throws IOException {
+			if ( length + len > buf.length ) flush();
+			if ( len > buf.length ) {
+				out.write(b, offset, len);
+				return;
+			}
+			System.arraycopy(b, offset, buf, length, len);
+			length += len;
+		}
+
+		void flush() throws IOException {
+			out.write(buf, 0, length);
+			length = 0;
+		}
+	}
+
+	/**
+	 * Buffered byte and varint input.
+	 */
+	private static class VarintInput {
+		private final InputStream in;
+		private final byte[] buf = new byte[BUFFER_SIZE];
+		private int start = 0;
+		private int end   = 0;
+
+		VarintInput(InputStream in) {
+			this.in = in;
+		}
+
+		int readByte() throws IOException {
+			if ( start == end ) fill();
+			return buf[start++] & 0xFF;
+		}
+
+		long readVarLong() throws IOException {
+			long value = 0;
+			for ( int shift = 0; shift < 64; shift += 7 ) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ( (b & 0x80) == 0 ) return value;
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		void readFully(byte[] dst, int len) throws IOException {
+			int done = 0;
+			while ( done < len ) {
+				if ( start == end ) fill();
+				int n = Math.min(len - done, end - start);
+				System.arraycopy(buf, start, dst, done, n);
+				start += n;
+				done  += n;
+			}
+		}
+
+		/**
+		 * What's left: the buffered bytes followed by the rest of the stream.
+		 */
+		InputStream remaining() {
+			return new InputStream() {
+				@Override
+				public int read() throws IOException {
+					if ( start == end && !tryFill() ) return -1;
+					return buf[start++] & 0xFF;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					if ( len == 0 ) return 0;
+					if ( start == end && !tryFill() ) return -1;
+					int n = Math.min(len, end - start);
+					System.arraycopy(buf, start, b, off, n);
+					start += n;
+					return n;
+				}
+			};
+		}
+
+		private void fill() throws IOException {
+			if ( !tryFill() ) throw new EOFException("Location archive is truncated");
+		}
+
+		private boolean tryFill() throws IOException {
+			int read = in.read(buf, 0, buf.length);
+			if ( read <= 0 ) return false;
+			start = 0;
+			end   = read;
+			return true;
+		}
+	}
+}
@@ -1,53 +1,162 @@
 package com.bafflesoft.locationcache.viewer;
 
-import java.util.ArrayList;
-import java.util.List;
-
-import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public class LocationCacheParser {
-	public static List<LocationInformation> parseLocationCacheFile(byte[] data, String type)
+	// keyLength (2) + accuracy (4) + confidence (4) + latitude (8) + longitude (8) + time (8)
+	static final int RECORD_FIXED_LENGTH = 34;
+
+	private static final int STREAM_BUFFER_SIZE = 8192;
+
+	/**
+	 * Receives each record as it is decoded. The key bytes are only valid for the duration
+	 * of the call - the buffer is reused for the next record.
+	 */
+	public interface RecordHandler {
+		public void onRecord(byte[] keyBuffer, int keyOffset, int keyLength, int accuracy, int confidence, int latIE6, int lonIE6, long timestamp);
+	}
+
+	public static LocationStore parseLocationCacheFile(byte[] data, byte type)
+	{
+		LocationStore locations = new LocationStore(data.length / (RECORD_FIXED_LENGTH + 17));
+
+		parseLocationCacheBuffer(ByteBuffer.wrap(data), locations.appender(type));
+
+		return locations;
+	}
+
+	/**
+	 * Decodes every record of a cache file that's already in memory (or mapped), reading each
+	 * record's values in one go through a BufferUnpacker.
+	 *
+	 * @return number of records decoded
+	 */
+	public static int parseLocationCacheBuffer(ByteBuffer data, RecordHandler handler)
 	{
+		BufferUnpacker unpacker = new BufferUnpacker(data);
+		ByteBuffer buffer = unpacker.buffer();
+
+		if ( unpacker.limit() < 4 ) {
+			DebugLog.v("LocationCacheViewer", "empty or truncated location cache header");
+			return 0;
+		}
+
+		DebugLog.v("LocationCacheViewer", "version: " + unpacker.decodeShort(0));
+		DebugLog.v("LocationCacheViewer", "count:   " + unpacker.decodeShort(2));
+
+		// keys are handed over straight from the backing array when there is one
+		byte[] keys   = buffer.hasArray() ? buffer.array() : new byte[64];
+		int    keyBase = buffer.hasArray() ? buffer.arrayOffset() : 0;
+
+		BufferUnpacker.Record record = new BufferUnpacker.Record();
+		int records = 0;
+		int i = 4;
+		while ( i < unpacker.limit() )
+		{
+			int next = unpacker.decodeRecord(i, record);
+			if ( next < 0 ) {
+				DebugLog.v("LocationCacheViewer", "malformed last record? at i: " + i + " but only length: " + unpacker.limit());
+				break;
+			}
+
+			int keyOffset = keyBase + record.key.offset();
+			if ( !buffer.hasArray() ) {
+				if ( record.key.length() > keys.length ) keys = new byte[record.key.length()];
+				record.key.copyTo(keys, 0);
+				keyOffset = 0;
+			}
+
+			handler.onRecord(keys, keyOffset, record.key.length(), record.accuracy, record.confidence, record.latIE6, record.lonIE6, record.timestamp);
+
+			i = next;
+			records++;
+		}
+
+		return records;
+	}
+
+	/**
+	 * Decodes records from the stream as they arrive, handing each one to the handler
+	 * without buffering the whole file. A single record buffer is reused for the whole stream.
+	 *
+	 * @return number of records decoded
+	 */
+	public static int parseLocationCacheStream(InputStream stream, RecordHandler handler) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream, STREAM_BUFFER_SIZE));
+
+		byte[] record = new byte[RECORD_FIXED_LENGTH + 64];
+
 		// unpack ">hh" - version, count
 		// big-endian short (2), short(2)
-		short version = DataUnpacker.decodeShort(data, 0);
-		short count   = DataUnpacker.decodeShort(data, 2);
+		try {
+			in.readFully(record, 0, 4);
+		} catch ( EOFException ex ) {
+			DebugLog.v("LocationCacheViewer", "empty or truncated location cache header");
+			return 0;
+		}
 
-		Log.v("LocationCacheViewer", "version: " + version);
-		Log.v("LocationCacheViewer", "count:   " + count  );
+		short version = DataUnpacker.decodeShort(record, 0);
+		short count   = DataUnpacker.decodeShort(record, 2);
+
+		DebugLog.v("LocationCacheViewer", "version: " + version);
+		DebugLog.v("LocationCacheViewer", "count:   " + count  );
 
-		List<LocationInformation> locations = new ArrayList<LocationInformation>(count);
-		
 		// unpack ">hSiiddQ" - keyLength, key, accuracy, confidence, latitude, longitude, time
 		// big-endian short (2), string(keyLength), int (4), int (4), double (8), double(8), unsigned long long (8)
-		// total - 34 bytes
-		for ( int i = 4; i < data.length; i += 34 )
+		// total - 34 bytes + keyLength
+		int records = 0;
+		while ( true )
 		{
-			if ( (i + 34) > data.length ) {
-				Log.v("LocationCacheViewer", "malformed last record? at i: " + i + " but only length: " + data.length);
+			int read = readAtMost(in, record, 0, 2);
+			if ( read == 0 ) break;
+
+			if ( read < 2 ) {
+				DebugLog.v("LocationCacheViewer", "malformed last record? after " + records + " records");
 				break;
 			}
 
-			LocationInformation location = new LocationInformation();
+			int keyLength = DataUnpacker.decodeShort(record, 0) & 0xFFFF;
+			int length    = RECORD_FIXED_LENGTH + keyLength;
 
-			int keyLength = DataUnpacker.decodeShort(data, i+ 0);
+			if ( length > record.length ) {
+				byte[] grown = new byte[length];
+				System.arraycopy(record, 0, grown, 0, 2);
+				record = grown;
+			}
 
-			location.key = DataUnpacker.decodeString(data, i+2, keyLength);
+			if ( readAtMost(in, record, 2, length - 2) < (length - 2) ) {
+				DebugLog.v("LocationCacheViewer", "malformed last record? after " + records + " records, key length: " + keyLength);
+				break;
+			}
 
-			i += keyLength;
-			
-			location.accuracy   = DataUnpacker.decodeInt(data, i+ 2);
-			location.confidence = DataUnpacker.decodeInt(data, i+ 6);
-			location.latIE6     = (int)(DataUnpacker.decodeFloat(data, i+10) * 1E6);
-			location.lonIE6     = (int)(DataUnpacker.decodeFloat(data, i+18) * 1E6);
-			location.timestamp  = DataUnpacker.decodeLong(data, i+26);
-			location.type       = type;
-			
-			locations.add(location);
-		}						
-		
-		return locations;
+			int i = keyLength;
+			handler.onRecord(record, 2, keyLength,
+					DataUnpacker.decodeInt(record, i+ 2),
+					DataUnpacker.decodeInt(record, i+ 6),
+					(int)(DataUnpacker.decodeFloat(record, i+10) * 1E6),
+					(int)(DataUnpacker.decodeFloat(record, i+18) * 1E6),
+					DataUnpacker.decodeLong(record, i+26));
+
+			records++;
+		}
+
+		return records;
+	}
+
+	private static int readAtMost(DataInputStream in, byte[] buffer, int offset, int length) throws IOException
+	{
+		int total = 0;
+		while ( total < length ) {
+			int read = in.read(buffer, offset + total, length - total);
+			if ( read < 0 ) break;
+			total += read;
+		}
+		return total;
 	}
-	
-	
 }
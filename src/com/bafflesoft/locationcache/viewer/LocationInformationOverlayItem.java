@@ -4,10 +4,23 @@ import com.google.android.maps.GeoPoint;
 import com.google.android.maps.OverlayItem;
 
 public class LocationInformationOverlayItem extends OverlayItem {
-	public LocationInformationOverlayItem(LocationInformation location) {
-		super(new GeoPoint(location.latIE6, location.lonIE6), location.key, location.getTimeString());
-		this.location = location;
+	public LocationInformationOverlayItem(LocationStore store, int index) {
+		// the title and snippet are only made if something shows them
+		super(new GeoPoint(store.latE6[index], store.lonE6[index]), null, null);
+		this.store = store;
+		this.index = index;
 	}
 
-	public LocationInformation location = null;	
+	private final LocationStore store;
+	public final int index;
+
+	@Override
+	public String getTitle() {
+		return store.getKey(index);
+	}
+
+	@Override
+	public String getSnippet() {
+		return store.getTimeString(index);
+	}
 }
@@ -0,0 +1,205 @@
+package com.bafflesoft.locationcache.viewer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The parsed store and its timestamp ordering saved to a file in the app's own storage,
+ * so a cold start whose cache files haven't changed can skip root, parsing and sorting.
+ * The signature is whatever identifies the cache files it was made from (their sizes and
+ * modification times); a snapshot only counts for the same signature.
+ *
+ * The file is the store's columns one after another, in the device's native byte order:
+ *
+ *   int magic, int version, short signature length, signature (UTF-8),
+ *   int size, int key pool size,
+ *   byte type[], long keyCode[], int latE6[], int lonE6[],
+ *   int accuracy[], int confidence[], long timestamp[], int byTime[], byte keyPool[]
+ *
+ * keyCode and keyPool are the store's own key columns, see LocationStore.
+ */
+public class LocationSnapshot {
+	private static final String TAG = "LocationCacheViewer";
+
+	private static final int MAGIC   = 0x4C435653; // "LCVS"
+	private static final int VERSION = 3;
+
+	// bytes per row across the columns: type, keyCode, four ints, timestamp and byTime
+	private static final int ROW_BYTES = 1 + 8 + 4 * 4 + 8 + 4;
+
+	public final String        signature;
+	public final LocationStore store;
+	public final int[]         byTime;
+
+	private LocationSnapshot(String signature, LocationStore store, int[] byTime) {
+		this.signature = signature;
+		this.store     = store;
+		this.byTime    = byTime;
+	}
+
+	/**
+	 * Maps the snapshot file and copies each column out of it with one bulk get, which in
+	 * the native byte order the file is written in is a plain copy. Returns null if there's
+	 * no snapshot; one that can't be read or doesn't hold together is deleted, and null
+	 * returned, so the caches are parsed again.
+	 */
+	public static LocationSnapshot read(File file) {
+		if ( !file.exists() ) return null;
+
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			data.order(ByteOrder.nativeOrder());
+
+			if ( data.getInt() != MAGIC || data.getInt() != VERSION ) return discard(file, "unknown format");
+
+			byte[] signatureBytes = new byte[data.getShort() & 0xFFFF];
+			data.get(signatureBytes);
+
+			int size        = data.getInt();
+			int keyPoolSize = data.getInt();
+			if ( size < 0 || keyPoolSize < 0 || data.remaining() != (long) size * ROW_BYTES + keyPoolSize ) {
+				return discard(file, "wrong length for " + size + " rows");
+			}
+
+			byte[]  type       = new byte [size];
+			long[]  keyCode    = new long [size];
+			int[]   latE6      = new int  [size];
+			int[]   lonE6      = new int  [size];
+			int[]   accuracy   = new int  [size];
+			int[]   confidence = new int  [size];
+			long[]  timestamp  = new long [size];
+			int[]   byTime     = new int  [size];
+			byte[]  keyPool    = new byte [keyPoolSize];
+
+			data.get(type);
+			data.asLongBuffer().get(keyCode);     data.position(data.position() + size * 8);
+			data.asIntBuffer().get(latE6);        data.position(data.position() + size * 4);
+			data.asIntBuffer().get(lonE6);        data.position(data.position() + size * 4);
+			data.asIntBuffer().get(accuracy);     data.position(data.position() + size * 4);
+			data.asIntBuffer().get(confidence);   data.position(data.position() + size * 4);
+			data.asLongBuffer().get(timestamp);   data.position(data.position() + size * 8);
+			data.asIntBuffer().get(byTime);       data.position(data.position() + size * 4);
+			data.get(keyPool);
+
+			String problem = check(type, keyCode, timestamp, byTime, keyPool);
+			if ( problem != null ) return discard(file, problem);
+
+			LocationStore store = new LocationStore(size, latE6, lonE6, accuracy, confidence, timestamp, type,
+					keyCode, keyPool, keyPoolSize);
+			return new LocationSnapshot(new String(signatureBytes, "UTF-8"), store, byTime);
+		} catch ( BufferUnderflowException ex ) {
+			return discard(file, "truncated");
+		} catch ( IOException ex ) {
+			return discard(file, ex.getMessage());
+		} finally {
+			if ( in != null ) try { in.close(); } catch ( IOException ex ) { }
+		}
+	}
+
+	/**
+	 * What's wrong with the columns read back, or null if the pool is whole keys end to
+	 * end, every row has a known type and a pooled key starts at one of them, and byTime
+	 * holds each row once, in timestamp order.
+	 */
+	private static String check(byte[] type, long[] keyCode, long[] timestamp, int[] byTime, byte[] keyPool) {
+		boolean[] keyStart = new boolean[keyPool.length];
+		int offset = 0;
+		while ( offset < keyPool.length ) {
+			if ( offset + 2 > keyPool.length ) return "key pool ends partway through a key";
+			keyStart[offset] = true;
+			offset += 2 + (((keyPool[offset] & 0xFF) << 8) | (keyPool[offset + 1] & 0xFF));
+		}
+		if ( offset != keyPool.length ) return "key pool ends partway through a key";
+
+		int size = type.length;
+		for ( int i = 0; i < size; i++ ) {
+			if ( type[i] != LocationStore.TYPE_CELL && type[i] != LocationStore.TYPE_WIFI ) {
+				return "row " + i + " has type " + type[i];
+			}
+			long pooled = ~keyCode[i];
+			if ( keyCode[i] < 0 && (pooled >= keyPool.length || !keyStart[(int) pooled]) ) {
+				return "row " + i + " has a key outside the pool";
+			}
+		}
+
+		boolean[] seen = new boolean[size];
+		for ( int t = 0; t < size; t++ ) {
+			int row = byTime[t];
+			if ( row < 0 || row >= size || seen[row] ) return "time order has row " + row + " at " + t;
+			if ( t > 0 && timestamp[row] < timestamp[byTime[t - 1]] ) return "time order is out of order at " + t;
+			seen[row] = true;
+		}
+		return null;
+	}
+
+	private static LocationSnapshot discard(File file, String problem) {
+		DebugLog.e(TAG, "snapshot " + file + " discarded: " + problem);
+		file.delete();
+		return null;
+	}
+
+	/**
+	 * Saves the store's rows and their time ordering. Written to a temporary file and
+	 * renamed over the old snapshot, so a half-written one is never read.
+	 */
+	public static void write(File file, String signature, LocationStore store, int[] byTime) throws IOException {
+		byte[] signatureBytes = utf8(signature);
+		int size = store.size();
+		int keyPoolSize = store.keyPoolSize();
+
+		ByteBuffer data = ByteBuffer.allocate(4 + 4 + 2 + signatureBytes.length + 4 + 4
+				+ size * ROW_BYTES + keyPoolSize);
+		data.order(ByteOrder.nativeOrder());
+		data.putInt(MAGIC);
+		data.putInt(VERSION);
+		data.putShort((short) signatureBytes.length);
+		data.put(signatureBytes);
+		data.putInt(size);
+		data.putInt(keyPoolSize);
+
+		data.put(store.type, 0, size);
+		data.asLongBuffer().put(store.keyCodes(), 0, size);    data.position(data.position() + size * 8);
+		data.asIntBuffer().put(store.latE6, 0, size);          data.position(data.position() + size * 4);
+		data.asIntBuffer().put(store.lonE6, 0, size);          data.position(data.position() + size * 4);
+		data.asIntBuffer().put(store.accuracy, 0, size);       data.position(data.position() + size * 4);
+		data.asIntBuffer().put(store.confidence, 0, size);     data.position(data.position() + size * 4);
+		data.asLongBuffer().put(store.timestamp, 0, size);     data.position(data.position() + size * 8);
+		data.asIntBuffer().put(byTime, 0, size);               data.position(data.position() + size * 4);
+		data.put(store.keyPool(), 0, keyPoolSize);
+		data.flip();
+
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			FileChannel channel = out.getChannel();
+			while ( data.hasRemaining() ) {
+				channel.write(data);
+			}
+		} finally {
+			out.close();
+		}
+		if ( !temp.renameTo(file) ) {
+			temp.delete();
+			throw new IOException("Unable to replace " + file);
+		}
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch ( UnsupportedEncodingException ex ) {
+			return s.getBytes();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.bafflesoft.locationcache.viewer;
+
+/**
+ * Summary of a set of store rows - count, time span, bounds and how accurate they are -
+ * gathered in one pass when the set is built, so showing it is just formatting.
+ */
+public class LocationStats {
+	// upper bounds of the accuracy buckets in meters; the last bucket is everything above
+	public static final int[] ACCURACY_LIMITS = { 10, 25, 50, 100, 250, 1000 };
+
+	public final int count;
+
+	public long minTime = Long.MAX_VALUE;
+	public long maxTime = Long.MIN_VALUE;
+
+	public int minLatE6 = Integer.MAX_VALUE;
+	public int minLonE6 = Integer.MAX_VALUE;
+	public int maxLatE6 = Integer.MIN_VALUE;
+	public int maxLonE6 = Integer.MIN_VALUE;
+
+	public long accuracySum = 0;
+	public final int[] accuracyCounts = new int[ACCURACY_LIMITS.length + 1];
+
+	public LocationStats(LocationStore store, int[] rows, int count) {
+		this.count = count;
+
+		for ( int i = 0; i < count; i++ ) {
+			int row = rows[i];
+
+			long time = store.timestamp[row];
+			if ( time < minTime ) minTime = time;
+			if ( time > maxTime ) maxTime = time;
+
+			int lat = store.latE6[row];
+			int lon = store.lonE6[row];
+			if ( lat < minLatE6 ) minLatE6 = lat;
+			if ( lat > maxLatE6 ) maxLatE6 = lat;
+			if ( lon < minLonE6 ) minLonE6 = lon;
+			if ( lon > maxLonE6 ) maxLonE6 = lon;
+
+			int accuracy = store.accuracy[row];
+			accuracySum += accuracy;
+			accuracyCounts[accuracyBucket(accuracy)]++;
+		}
+	}
+
+	public int averageAccuracy() {
+		return count == 0 ? 0 : (int) (accuracySum / count);
+	}
+
+	public static int accuracyBucket(int accuracy) {
+		int b = 0;
+		while ( b < ACCURACY_LIMITS.length && accuracy > ACCURACY_LIMITS[b] ) b++;
+		return b;
+	}
+}
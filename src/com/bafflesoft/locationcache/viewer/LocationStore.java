@@ -0,0 +1,376 @@
+package com.bafflesoft.locationcache.viewer;
+
+import java.util.Date;
+
+/**
+ * Column-oriented storage for parsed cache records. Each record is an index into
+ * parallel primitive arrays, so loading a large cache doesn't create an object per
+ * location. Keys are packed into a long by KeyCodec - a BSSID is its MAC address, a cell
+ * key its numbers - and only the few that don't pack go in a shared byte pool, interned
+ * so each distinct key is stored once. Text for a key is only made when it's shown.
+ *
+ * The public arrays may be larger than size() and are replaced when the store grows,
+ * so don't hold on to them across calls to add().
+ */
+public class LocationStore {
+	public static final byte TYPE_CELL = 1;
+	public static final byte TYPE_WIFI = 2;
+
+	private static final int DEFAULT_CAPACITY = 256;
+
+	public int[]  latE6;
+	public int[]  lonE6;
+	public int[]  accuracy;
+	public int[]  confidence;
+	public long[] timestamp;
+	public byte[] type;
+
+	// KeyCodec's packed key, or for keys it can't pack ~offset of the key in the pool,
+	// where it's stored as a two byte length and the key
+	private long[]  keyCode;
+	private byte[]  keyPool;
+	private int     keyPoolSize = 0;
+
+	// open addressing hash of pooled key -> pool offset + 1, built on the first poolKey()
+	private int[] poolTable = null;
+	private int   poolKeys  = 0;
+
+	private int size = 0;
+
+	public LocationStore() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public LocationStore(int capacity) {
+		capacity = Math.max(capacity, 16);
+
+		latE6      = new int [capacity];
+		lonE6      = new int [capacity];
+		accuracy   = new int [capacity];
+		confidence = new int [capacity];
+		timestamp  = new long[capacity];
+		type       = new byte[capacity];
+		keyCode    = new long[capacity];
+		keyPool    = new byte[64];
+	}
+
+	/**
+	 * A store over existing columns, as read back by LocationSnapshot.
+	 */
+	LocationStore(int size, int[] latE6, int[] lonE6, int[] accuracy, int[] confidence, long[] timestamp, byte[] type,
+			long[] keyCode, byte[] keyPool, int keyPoolSize) {
+		this.size        = size;
+		this.latE6       = latE6;
+		this.lonE6       = lonE6;
+		this.accuracy    = accuracy;
+		this.confidence  = confidence;
+		this.timestamp   = timestamp;
+		this.type        = type;
+		this.keyCode     = keyCode;
+		this.keyPool     = keyPool;
+		this.keyPoolSize = keyPoolSize;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// the key columns, for LocationSnapshot
+	long[]  keyCodes()    { return keyCode;     }
+	byte[]  keyPool()     { return keyPool;     }
+	int     keyPoolSize() { return keyPoolSize; }
+
+	public int add(byte recordType, byte[] keyBuffer, int keyStart, int keyLen, int recordAccuracy, int recordConfidence, int latIE6, int lonIE6, long time)
+	{
+		long code = KeyCodec.pack(recordType, keyBuffer, keyStart, keyLen);
+		if ( code == KeyCodec.NOT_PACKED ) {
+			code = poolKey(keyBuffer, keyStart, keyLen);
+		}
+		return addRow(recordType, code, recordAccuracy, recordConfidence, latIE6, lonIE6, time);
+	}
+
+	/**
+	 * Copies a record from another store, key included.
+	 */
+	public int add(LocationStore other, int j)
+	{
+		long code = other.keyCode[j];
+		if ( code < 0 ) {
+			int offset = (int) ~code;
+			code = poolKey(other.keyPool, offset + 2, other.poolKeyLength(offset));
+		}
+		return addRow(other.type[j], code, other.accuracy[j], other.confidence[j], other.latE6[j], other.lonE6[j], other.timestamp[j]);
+	}
+
+	private int addRow(byte recordType, long code, int recordAccuracy, int recordConfidence, int latIE6, int lonIE6, long time)
+	{
+		ensureCapacity(size + 1);
+
+		keyCode   [size] = code;
+		latE6     [size] = latIE6;
+		lonE6     [size] = lonIE6;
+		accuracy  [size] = recordAccuracy;
+		confidence[size] = recordConfidence;
+		timestamp [size] = time;
+		type      [size] = recordType;
+
+		return size++;
+	}
+
+	public int keyLength(int i)
+	{
+		long code = keyCode[i];
+		return code >= 0 ? KeyCodec.length(type[i], code) : poolKeyLength((int) ~code);
+	}
+
+	/**
+	 * Writes the row's key text to dst at offset, which needs room for keyLength(i).
+	 *
+	 * @return the number of bytes written
+	 */
+	public int copyKey(int i, byte[] dst, int offset)
+	{
+		long code = keyCode[i];
+		if ( code >= 0 ) return KeyCodec.unpack(type[i], code, dst, offset);
+
+		int poolOffset = (int) ~code;
+		int keyLen = poolKeyLength(poolOffset);
+		System.arraycopy(keyPool, poolOffset + 2, dst, offset, keyLen);
+		return keyLen;
+	}
+
+	/**
+	 * The key's pool code: ~offset of the same key if it's already pooled, otherwise of a
+	 * new copy at the end of the pool.
+	 */
+	private long poolKey(byte[] keyBuffer, int keyStart, int keyLen)
+	{
+		if ( poolTable == null || (poolKeys + 1) * 2 > poolTable.length ) {
+			buildPoolTable(poolKeys * 2 + 1);
+		}
+
+		int mask = poolTable.length - 1;
+		int slot = bytesHash(0, keyBuffer, keyStart, keyLen) & mask;
+		for ( ; poolTable[slot] != 0; slot = (slot + 1) & mask ) {
+			int offset = poolTable[slot] - 1;
+			if ( samePoolKey(offset, keyBuffer, keyStart, keyLen) ) return ~offset;
+		}
+
+		ensureKeyPoolCapacity(keyPoolSize + 2 + keyLen);
+
+		int offset = keyPoolSize;
+		keyPool[offset]     = (byte) (keyLen >>> 8);
+		keyPool[offset + 1] = (byte) keyLen;
+		System.arraycopy(keyBuffer, keyStart, keyPool, offset + 2, keyLen);
+		keyPoolSize += 2 + keyLen;
+
+		poolTable[slot] = offset + 1;
+		poolKeys++;
+		return ~offset;
+	}
+
+	/**
+	 * Hashes every key in the pool, which is just the keys one after another. A pool read
+	 * back by LocationSnapshot may hold a key more than once; the first copy is used.
+	 *
+	 * @param keys how many keys to leave room for beyond those already pooled
+	 */
+	private void buildPoolTable(int keys)
+	{
+		for ( int offset = 0; offset < keyPoolSize; offset += 2 + poolKeyLength(offset) ) {
+			keys++;
+		}
+		int capacity = 16;
+		while ( capacity < keys * 2 ) capacity <<= 1;
+
+		poolTable = new int[capacity];
+		poolKeys  = 0;
+		int mask = capacity - 1;
+		for ( int offset = 0; offset < keyPoolSize; offset += 2 + poolKeyLength(offset) ) {
+			int slot = bytesHash(0, keyPool, offset + 2, poolKeyLength(offset)) & mask;
+			boolean pooled = false;
+			for ( ; poolTable[slot] != 0; slot = (slot + 1) & mask ) {
+				if ( samePoolKey(poolTable[slot] - 1, keyPool, offset + 2, poolKeyLength(offset)) ) {
+					pooled = true;
+					break;
+				}
+			}
+			if ( !pooled ) {
+				poolTable[slot] = offset + 1;
+				poolKeys++;
+			}
+		}
+	}
+
+	private boolean samePoolKey(int offset, byte[] key, int start, int length)
+	{
+		if ( poolKeyLength(offset) != length ) return false;
+		for ( int k = 0; k < length; k++ ) {
+			if ( keyPool[offset + 2 + k] != key[start + k] ) return false;
+		}
+		return true;
+	}
+
+	private static int bytesHash(int h, byte[] bytes, int start, int length)
+	{
+		for ( int k = start; k < start + length; k++ ) {
+			h = 31 * h + bytes[k];
+		}
+		return h;
+	}
+
+	private int poolKeyLength(int offset)
+	{
+		return ((keyPool[offset] & 0xFF) << 8) | (keyPool[offset + 1] & 0xFF);
+	}
+
+	public void addAll(LocationStore other)
+	{
+		if ( other == null || other.size == 0 ) return;
+
+		ensureCapacity(size + other.size);
+
+		System.arraycopy(other.latE6,      0, latE6,      size, other.size);
+		System.arraycopy(other.lonE6,      0, lonE6,      size, other.size);
+		System.arraycopy(other.accuracy,   0, accuracy,   size, other.size);
+		System.arraycopy(other.confidence, 0, confidence, size, other.size);
+		System.arraycopy(other.timestamp,  0, timestamp,  size, other.size);
+		System.arraycopy(other.type,       0, type,       size, other.size);
+		for ( int i = 0; i < other.size; i++ ) {
+			long code = other.keyCode[i];
+			if ( code < 0 ) {
+				int offset = (int) ~code;
+				code = poolKey(other.keyPool, offset + 2, other.poolKeyLength(offset));
+			}
+			keyCode[size + i] = code;
+		}
+
+		size += other.size;
+	}
+
+	/**
+	 * Handler that appends every parsed record to this store with the given type.
+	 */
+	public LocationCacheParser.RecordHandler appender(final byte recordType)
+	{
+		return new LocationCacheParser.RecordHandler() {
+			public void onRecord(byte[] keyBuffer, int keyStart, int keyLen, int recordAccuracy, int recordConfidence, int latIE6, int lonIE6, long time) {
+				add(recordType, keyBuffer, keyStart, keyLen, recordAccuracy, recordConfidence, latIE6, lonIE6, time);
+			}
+		};
+	}
+
+	public String getKey(int i)
+	{
+		byte[] text = new byte[keyLength(i)];
+		return DataUnpacker.decodeString(text, 0, copyKey(i, text, 0));
+	}
+
+	public String getTypeName(int i)
+	{
+		return typeName(type[i]);
+	}
+
+	public static String typeName(byte recordType)
+	{
+		switch ( recordType ) {
+			case TYPE_CELL: return "Cellphone Tower";
+			case TYPE_WIFI: return "Wireless Access Point";
+			default:        return "Unknown";
+		}
+	}
+
+	public String getTimeString(int i)
+	{
+		return new Date(timestamp[i]).toLocaleString();
+	}
+
+	/**
+	 * Records at 0,0 have no real location (they end up in the ocean off Africa).
+	 */
+	public boolean hasLocation(int i)
+	{
+		return !(latE6[i] == 0 && lonE6[i] == 0);
+	}
+
+	/**
+	 * Record indexes ordered by timestamp. Records with the same timestamp keep their load order.
+	 */
+	public int[] sortedByTime()
+	{
+		int[] order = new int[size];
+		for ( int i = 0; i < size; i++ ) order[i] = i;
+
+		int[] scratch = new int[size];
+		mergeSortByTime(order, scratch, 0, size);
+
+		return order;
+	}
+
+	private void mergeSortByTime(int[] order, int[] scratch, int from, int to)
+	{
+		if ( to - from < 2 ) return;
+
+		int mid = (from + to) >>> 1;
+		mergeSortByTime(order, scratch, from, mid);
+		mergeSortByTime(order, scratch, mid,  to);
+
+		if ( timestamp[order[mid - 1]] <= timestamp[order[mid]] ) return;
+
+		System.arraycopy(order, from, scratch, from, to - from);
+		int left = from, right = mid;
+		for ( int i = from; i < to; i++ ) {
+			if ( right >= to || (left < mid && timestamp[scratch[left]] <= timestamp[scratch[right]]) ) {
+				order[i] = scratch[left++];
+			} else {
+				order[i] = scratch[right++];
+			}
+		}
+	}
+
+	public String toString(int i)
+	{
+		return "LocationInformation{ key: " + getKey(i) + " accuracy: " + accuracy[i] + " confidence: " + confidence[i] + " latitude: " + latE6[i] + " longitude: " + lonE6[i] + " time: " + getTimeString(i) + "}";
+	}
+
+	private void ensureCapacity(int needed)
+	{
+		if ( needed <= latE6.length ) return;
+
+		int capacity = Math.max(needed, latE6.length * 2);
+
+		latE6      = grow(latE6,      capacity);
+		lonE6      = grow(lonE6,      capacity);
+		accuracy   = grow(accuracy,   capacity);
+		confidence = grow(confidence, capacity);
+		timestamp  = grow(timestamp,  capacity);
+		keyCode    = grow(keyCode,    capacity);
+
+		byte[] newType = new byte[capacity];
+		System.arraycopy(type, 0, newType, 0, size);
+		type = newType;
+	}
+
+	private void ensureKeyPoolCapacity(int needed)
+	{
+		if ( needed <= keyPool.length ) return;
+
+		byte[] newPool = new byte[Math.max(needed, keyPool.length * 2)];
+		System.arraycopy(keyPool, 0, newPool, 0, keyPoolSize);
+		keyPool = newPool;
+	}
+
+	private int[] grow(int[] arr, int capacity)
+	{
+		int[] grown = new int[capacity];
+		System.arraycopy(arr, 0, grown, 0, size);
+		return grown;
+	}
+
+	private long[] grow(long[] arr, int capacity)
+	{
+		long[] grown = new long[capacity];
+		System.arraycopy(arr, 0, grown, 0, size);
+		return grown;
+	}
+}
@@ -2,16 +2,24 @@ package com.bafflesoft.locationcache.viewer;
 
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Locale;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import android.app.AlertDialog;
 import android.app.AlertDialog.Builder;
@@ -20,22 +28,30 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
 import android.graphics.Point;
+import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
+import android.location.Location;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
-import android.os.Message;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.ProgressBar;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -44,13 +60,17 @@ import com.google.android.maps.GeoPoint;
 import com.google.android.maps.ItemizedOverlay;
 import com.google.android.maps.MapActivity;
 import com.google.android.maps.MapView;
-import com.google.android.maps.Projection;
 
 public class MainActivity extends MapActivity {
 	private static final String PREF_SHOWED_SU_WARNING  = "SHOWED_SU_WARNING";
 	private static final String PREF_SHOWED_ICS_WARNING = "SHOWED_ICS_WARNING";
 
 	private static final int THRESHOLD_HEATMAP = 150;	
+	private static final int CLUSTER_CELL_PX   = 48;
+	private static final int SPOT_RADIUS       = 5; // pixels, the smallest accuracy circle drawn
+	
+	// see worldPixels(), by zoom level
+	private final float[] worldPixels = new float[32];
 	
 	public class NoRootAccessException extends Exception {	
 		private static final long serialVersionUID = 1L;
@@ -74,49 +94,288 @@ public class MainActivity extends MapActivity {
 	private static final int MENU_ITEM_REPLAY  = 5;
 	private static final int MENU_ITEM_EXPORT  = 7;
 	private static final int MENU_ITEM_RELOAD  = 8;
+	private static final int MENU_ITEM_DENSITY = 9;
+	private static final int MENU_ITEM_BENCHMARK = 10;
+	private static final int MENU_ITEM_TIME_WINDOW = 11;
+	private static final int MENU_ITEM_IMPORT    = 12;
+	private static final int MENU_ITEM_HISTORY   = 13;
+	private static final int MENU_ITEM_RENDER    = 14;
+	private static final int MENU_ITEM_SEARCH    = 15;
+	
+	private static final String[] TIME_WINDOW_NAMES = { "All Locations", "Last 24 Hours", "Last 7 Days" };
+	private static final long[]   TIME_WINDOW_MS    = { 0, 24L * 60 * 60 * 1000, 7L * 24 * 60 * 60 * 1000 };
 
+	// the history keeps at most this many records, and showing it reads at least the newest
+	private static final int HISTORY_MAX_RECORDS  = 200000;
+	private static final int HISTORY_SHOW_RECORDS = 100000;
+
+	// a search lists at most this many matches, and zooms in at least this far to show one
+	private static final int SEARCH_MAX_RESULTS = 50;
+	private static final int SEARCH_ZOOM        = 16;
+	
 	private static final String FOLDER_CACHE        = "/data/data/com.google.android.location/files/";
 	private static final String LOCATION_CACHE_CELL = FOLDER_CACHE + "cache.cell";
 	private static final String LOCATION_CACHE_WIFI = FOLDER_CACHE + "cache.wifi";
+	private static final String CACHE_COPY_PREFIX   = "location-cache-";
 	
 	// pulled from http://developer.android.com/reference/android/os/Build.VERSION_CODES.html#GINGERBREAD
 	private static final int BUILD_VERSION_CODE_GINGERBREAD_MR1 = 10;
 	
+	private MapView mapView     = null;
 	private Markers markersWifi = null;
 	private Markers markersCell = null;
+	
+	private HeatmapOverlay heatmap = null;
 
-	private SortedSet<LocationInformation> pointsAll = null;
+	private LocationStore points       = null;
+	private int[]         pointsByTime = null;
+	private String        pointsSignature = null;
+	private TimeIndex     timeIndex = null;
+	
+	// only points newer than this long ago are shown; 0 shows everything
+	private long timeWindowMs = 0;
+	
+	// the points are from an imported archive or the history rather than this device's cache
+	private boolean viewingStored = false;
+	
+	// every location loaded so far, including ones since dropped from the cache
+	private HistoryStore history = null;
+	
+	// when rendering in the background the marker layers are drawn on this thread; null otherwise
+	private HandlerThread renderThread  = null;
+	private Handler       renderHandler = null;
 	
 	private long lastLoad = 0;
 	
 	private boolean firstLoad = true;
 	private boolean noRoot    = true;
 	
+	// the root shell is started once and reused for the root check and every load
+	private ShellCommand shell = null;
+	
 	private ProgressDialog dialog = null;
-	private LoadDataTask   task   = null;
+	// the load, import or history read that's running; only one runs at a time
+	private AsyncTask<Void, ?, Boolean> task = null;
 	
 	public class LoadDataTask extends AsyncTask<Void, String, Boolean> {
-		private List<LocationInformation> pointsCell = null;
-		private List<LocationInformation> pointsWifi = null;
+		private LocationStore pointsLoaded = new LocationStore();
+		private int[]         pointsLoadedByTime = null;
+		private boolean       pointsChanged = true;
+		private TimeIndex     timeIndexLoaded = null;
+		private Markers.Prepared[] prepared = null;
+		
+		// the time window when the load started, the markers are prepared for it
+		private final long windowMs = timeWindowMs;
+
+		// the last load, kept as it is if the cache files haven't been written since
+		private LocationStore pointsPrevious       = points;
+		private int[]         pointsPreviousByTime = pointsByTime;
+		
+		// sizes and modification times of the cache files this load is from
+		private String signatureLoaded = null;
+
+		private boolean foundCell = false;
+		private boolean foundWifi = false;
 		
 		private Exception error = null;
 		
 		@Override
 		protected Boolean doInBackground(Void... params) {
+			ExecutorService loaders = Executors.newFixedThreadPool(2);
 			try {
-				publishProgress("Loading Cell Tower Locations");
-				pointsCell = loadPoints(LOCATION_CACHE_CELL, "Cellphone Tower");
-				publishProgress("Loading Wireless Access Point Locations");
-				pointsWifi = loadPoints(LOCATION_CACHE_WIFI, "Wireless Access Point");
+				publishProgress("Checking Location Caches");
+				String cellSignature = shell.fileSignature(LOCATION_CACHE_CELL);
+				String wifiSignature = shell.fileSignature(LOCATION_CACHE_WIFI);
+				signatureLoaded = cellSignature + "|" + wifiSignature;
+				// without stat a file could have changed without its signature changing
+				boolean signatureKnown = !ShellCommand.SIGNATURE_UNKNOWN.equals(cellSignature)
+					&& !ShellCommand.SIGNATURE_UNKNOWN.equals(wifiSignature);
+				
+				if ( signatureKnown && pointsPrevious != null && signatureLoaded.equals(pointsSignature) ) {
+					// neither file has been written since the last load
+					foundCell = cellSignature != null;
+					foundWifi = wifiSignature != null;
+					pointsChanged      = false;
+					pointsLoaded       = pointsPrevious;
+					pointsLoadedByTime = pointsPreviousByTime;
+					prepare(true);
+					return Boolean.TRUE;
+				}
+				
+				if ( pointsPrevious == null ) {
+					LocationSnapshot snapshot = LocationSnapshot.read(snapshotFile());
+					if ( snapshot != null ) {
+						publishProgress("Drawing Saved Locations");
+						final Markers.Prepared[] saved = prepareLocations(snapshot.store, new TimeIndex(snapshot.store, snapshot.byTime), windowMs);
+						runOnUiThread(new Runnable() {
+							public void run() { showLocations(saved); }
+						});
+						
+						if ( signatureKnown && snapshot.signature.equals(signatureLoaded) ) {
+							foundCell = cellSignature != null;
+							foundWifi = wifiSignature != null;
+							pointsLoaded       = snapshot.store;
+							pointsLoadedByTime = snapshot.byTime;
+							prepare(true);
+							return Boolean.TRUE;
+						}
+						// out of date - it stays on the map while the caches are read
+					}
+				}
+				
+				publishLoadProgress();
+				deleteCacheCopies();
+				
+				// both files are read and parsed at the same time, each into its own store
+				LocationStore cell = new LocationStore();
+				LocationStore wifi = new LocationStore();
+				Future<Boolean> cellLoad = loaders.submit(new FileLoader(LOCATION_CACHE_CELL, LocationStore.TYPE_CELL, cell, cellProgress));
+				Future<Boolean> wifiLoad = loaders.submit(new FileLoader(LOCATION_CACHE_WIFI, LocationStore.TYPE_WIFI, wifi, wifiProgress));
+				foundCell = waitForLoad(cellLoad);
+				foundWifi = waitForLoad(wifiLoad);
+				
+				pointsLoaded = new LocationStore(cell.size() + wifi.size());
+				pointsLoaded.addAll(cell);
+				pointsLoaded.addAll(wifi);
+				
 				publishProgress("Drawing");
 				
-				drawLocations(pointsCell, pointsWifi);
+				pointsLoadedByTime = pointsLoaded.sortedByTime();
+				prepare(false);
+				
+				try {
+					LocationSnapshot.write(snapshotFile(), signatureLoaded, pointsLoaded, pointsLoadedByTime);
+				} catch ( IOException ex ) {
+					Log.e("LocationCacheViewer", "Unable to save snapshot: " + ex.getMessage());
+				}
+				
+				if ( pointsChanged ) {
+					publishProgress("Updating History");
+					try {
+						history.append(pointsLoaded);
+					} catch ( IOException ex ) {
+						Log.e("LocationCacheViewer", "Unable to update history: " + ex.getMessage());
+					}
+				}
 				
 				return Boolean.TRUE;
 				
 			} catch ( Exception ex ) {
 				this.error = ex;
 				return Boolean.FALSE;
+			} finally {
+				loaders.shutdownNow();
+			}
+		}
+		
+		/**
+		 * Indexes the loaded points by time and prepares their markers, unless they're
+		 * already shown and there's no time window to move along.
+		 */
+		private void prepare(boolean shown) {
+			timeIndexLoaded = new TimeIndex(pointsLoaded, pointsLoadedByTime);
+			if ( !shown || windowMs > 0 ) {
+				prepared = prepareLocations(pointsLoaded, timeIndexLoaded, windowMs);
+			}
+		}
+		
+		/**
+		 * Bytes and records parsed so far from one file. Written by that file's loader thread only.
+		 */
+		private class FileProgress {
+			final String label;
+			volatile long bytes   = 0;
+			volatile int  records = 0;
+			volatile boolean done = false;
+			
+			FileProgress(String label) {
+				this.label = label;
+			}
+			
+			void append(StringBuilder message) {
+				message.append(label).append(": ");
+				message.append(bytes / 1024).append(" KB, ").append(records).append(" records");
+				if ( done ) message.append(" - done");
+				message.append("\n");
+			}
+		}
+		
+		private final FileProgress cellProgress = new FileProgress("Cell Towers");
+		private final FileProgress wifiProgress = new FileProgress("Wireless Access Points");
+		
+		private void publishLoadProgress() {
+			StringBuilder message = new StringBuilder("Loading Location Caches\n\n");
+			cellProgress.append(message);
+			wifiProgress.append(message);
+			publishProgress(message.toString());
+		}
+		
+		private class FileLoader implements Callable<Boolean> {
+			private static final int PROGRESS_EVERY = 2048; // records
+			
+			private final String fileName;
+			private final byte type;
+			private final LocationStore store;
+			private final FileProgress progress;
+			
+			FileLoader(String fileName, byte type, LocationStore store, FileProgress progress) {
+				this.fileName = fileName;
+				this.type     = type;
+				this.store    = store;
+				this.progress = progress;
+			}
+			
+			private final LocationCacheParser.RecordHandler appender = new LocationCacheParser.RecordHandler() {
+				public void onRecord(byte[] keyBuffer, int keyOffset, int keyLength, int accuracy, int confidence, int latIE6, int lonIE6, long timestamp) {
+					store.add(type, keyBuffer, keyOffset, keyLength, accuracy, confidence, latIE6, lonIE6, timestamp);
+					
+					progress.records = store.size();
+					if ( progress.records % PROGRESS_EVERY == 0 ) {
+						publishLoadProgress();
+					}
+				}
+			};
+			
+			public Boolean call() throws Exception {
+				// root copies the file somewhere this app can map it; streaming it through
+				// the shell into the parser is only the fallback
+				File copy = copyCacheFile(fileName);
+				boolean found = true;
+				FileInputStream in = null;
+				try {
+					if ( copy != null ) {
+						in = new FileInputStream(copy);
+						ByteBuffer data = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, copy.length());
+						progress.bytes = data.remaining();
+						publishLoadProgress();
+						
+						LocationCacheParser.parseLocationCacheBuffer(data, appender);
+					} else {
+						progress.bytes = shell.fileSize(fileName);
+						publishLoadProgress();
+						
+						found = streamCacheFile(fileName, appender);
+					}
+				} finally {
+					if ( in != null ) in.close();
+					if ( copy != null ) copy.delete();
+				}
+				progress.done = true;
+				publishLoadProgress();
+				return Boolean.valueOf(found);
+			}
+		}
+		
+		/**
+		 * Result of one file's load, rethrowing whatever the loader threw.
+		 */
+		private boolean waitForLoad(Future<Boolean> load) throws Exception {
+			try {
+				return load.get().booleanValue();
+			} catch ( ExecutionException ex ) {
+				Throwable cause = ex.getCause();
+				if ( cause instanceof Exception ) throw (Exception) cause;
+				throw ex;
 			}
 		}
 		
@@ -159,14 +418,14 @@ public class MainActivity extends MapActivity {
 			}
 			else
 			{
-				if ( pointsCell == null || pointsWifi == null ) {
+				if ( !foundCell || !foundWifi ) {
 					StringBuilder message = new StringBuilder();
 					message.append("Location data cache found.\n\n");
 					message.append("Unable to load location data for:\n\n");
-					if ( pointsCell == null ) {
+					if ( !foundCell ) {
 						message.append("     Cell Locations\n\n");
 					}
-					if ( pointsWifi == null ) {
+					if ( !foundWifi ) {
 						message.append("     Wifi Locations\n\n");
 					}
 					message.append("This data is only stored if you have enabled the 'Wireless Networks' options under Settings -> Locations\n\nOtherwise, Android does not cache this data.");
@@ -182,7 +441,7 @@ public class MainActivity extends MapActivity {
 						public void onCancel(DialogInterface dialog) { finish(); }
 					});
 					
-					if ( pointsCell == null && pointsWifi == null ) {
+					if ( !foundCell && !foundWifi ) {
 						builder.setPositiveButton("Close Application", new DialogInterface.OnClickListener() {
 							public void onClick(DialogInterface dialog, int which) { finish(); }
 						});
@@ -196,12 +455,25 @@ public class MainActivity extends MapActivity {
 				}
 				
 				lastLoad = System.currentTimeMillis();
-				MainActivity.this.pointsAll = new TreeSet<LocationInformation>();
-				if ( pointsCell != null && pointsCell.size() > 0 ) {
-					MainActivity.this.pointsAll.addAll(pointsCell);
+				viewingStored = false;
+				boolean replaced = MainActivity.this.points != pointsLoaded;
+				MainActivity.this.points       = pointsLoaded;
+				MainActivity.this.pointsByTime = pointsLoadedByTime;
+				MainActivity.this.pointsSignature = signatureLoaded;
+				if ( pointsChanged || replaced || timeIndex == null ) {
+					if ( isReplaying() ) {
+						stopReplay(); // its positions are in the old index
+					}
+					timeIndex = timeIndexLoaded;
 				}
-				if ( pointsWifi != null && pointsWifi.size() > 0 ) {
-					MainActivity.this.pointsAll.addAll(pointsWifi);
+				if ( prepared != null ) {
+					showLocations(prepared);
+				}
+				if ( windowMs != timeWindowMs ) {
+					applyTimeWindow(); // changed while loading
+				}
+				if ( pointsChanged || replaced ) {
+					heatmap.setStore(pointsLoaded);
 				}
 				
 				updateLabels();
@@ -230,7 +502,12 @@ public class MainActivity extends MapActivity {
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		DebugLog.setSink(new AndroidLogSink());
+		shell = new ShellCommand();
+		history = new HistoryStore(new File(getFilesDir(), "locations.history"), HISTORY_MAX_RECORDS);
 		setContentView(R.layout.main);
+		mapView = (MapView) findViewById(R.id.mapview);
+		initReplayViews();
 		
 		if ( Util.isDebugBuild(this) ) {
 //			MapView mapView = (MapView)findViewById(R.id.mapview);
@@ -325,10 +602,9 @@ public class MainActivity extends MapActivity {
 		setPreferenceFlag(PREF_SHOWED_SU_WARNING, true);
 		
 		try {
-			ShellCommand cmd = new ShellCommand();
-			if ( !cmd.canSU(true) ) {
+			if ( !shell.canSU(true) ) {
 				noRoot = true;
-				throw new NoRootAccessException(String.valueOf(cmd.result.stderr));
+				throw new NoRootAccessException(String.valueOf(shell.result.stderr));
 			} else {
 				noRoot = false;
 			}
@@ -387,6 +663,9 @@ public class MainActivity extends MapActivity {
 	
 	private void loadOrReloadData(boolean force)
 	{
+		// an imported archive or the history stays up until a reload is asked for
+		if ( viewingStored && !force ) return;
+		
 		// only load if it's been at least 5 minutes since the last load
 		if ( task == null ) {
 			if ( force || (System.currentTimeMillis() - lastLoad) > (1000 * 60 * 5) ) {
@@ -405,9 +684,18 @@ public class MainActivity extends MapActivity {
 		super.onPause();
 	}
 	
+	@Override
+	protected void onDestroy() {
+		if ( renderThread != null ) {
+			setBackgroundRendering(false);
+		}
+		// a loader may be partway through a command; don't wait for it here
+		shell.closeInBackground();
+		super.onDestroy();
+	}
+	
 	private void initOverlays()
 	{
-		MapView mapView = (MapView) findViewById(R.id.mapview);
 		mapView.setBuiltInZoomControls(true);
 		
 		Drawable drawWifi = getResources().getDrawable(R.drawable.icon_wifi);
@@ -421,8 +709,15 @@ public class MainActivity extends MapActivity {
 		
 		markersWifi.setFillColor(0xff9E7151);
 		markersCell.setFillColor(0xff5680FC);
+		
+		heatmap = new HeatmapOverlay();
 	}
 	
+	/**
+	 * Only formats: the counts and time spans were gathered in the background, with the
+	 * rest of the markers' indexes, by every path that changes the shown points - loads,
+	 * imports and the time window (see Markers.Prepared).
+	 */
 	private void updateLabels()
 	{
 		int cellCount = 0;
@@ -430,32 +725,16 @@ public class MainActivity extends MapActivity {
 		CharSequence wifiDateSpan = "No Wifi Data Loaded";
 		CharSequence cellDateSpan = "No Cell Data Loaded";
 
-		if ( markersCell != null && markersCell.size() > 0 ) {
-			cellCount = markersCell.size();
-			
-			long minDateCell = Long.MAX_VALUE;
-			long maxDateCell = Long.MIN_VALUE;
-			for ( int i = 0; i < markersCell.size(); i++ ) {
-				long timestamp = markersCell.getItem(i).location.timestamp;
-				minDateCell = Math.min(minDateCell, timestamp);
-				maxDateCell = Math.max(maxDateCell, timestamp);
-			}
-
-			cellDateSpan = formatDateSpan(minDateCell, maxDateCell);
+		LocationStats cell = markersCell != null ? markersCell.getStats() : null;
+		if ( cell != null && cell.count > 0 ) {
+			cellCount    = cell.count;
+			cellDateSpan = formatDateSpan(cell.minTime, cell.maxTime);
 		}
 		
-		if ( markersWifi != null && markersCell.size() > 0 ) {
-			wifiCount = markersWifi.size();			
-		
-			long minDateWifi = Long.MAX_VALUE;
-			long maxDateWifi = Long.MIN_VALUE;
-			for ( int i = 0; i < markersWifi.size(); i++ ) {
-				long timestamp = markersWifi.getItem(i).location.timestamp;
-				minDateWifi = Math.min(minDateWifi, timestamp);
-				maxDateWifi = Math.max(maxDateWifi, timestamp);
-			}
-
-			wifiDateSpan = formatDateSpan(minDateWifi, maxDateWifi);
+		LocationStats wifi = markersWifi != null ? markersWifi.getStats() : null;
+		if ( wifi != null && wifi.count > 0 ) {
+			wifiCount    = wifi.count;
+			wifiDateSpan = formatDateSpan(wifi.minTime, wifi.maxTime);
 		}
 		
 		((TextView)findViewById(R.id.wifiTowerCount)).setText(String.valueOf(wifiCount));
@@ -466,14 +745,54 @@ public class MainActivity extends MapActivity {
 		findViewById(R.id.dataSummary).setVisibility(View.VISIBLE);
 	}
 	
-	private CharSequence formatDate(long ts)
+	/**
+	 * Accuracy breakdown of the shown points, from tapping the summary.
+	 */
+	private void showStatistics()
 	{
-		Calendar cal = Calendar.getInstance(Locale.getDefault());
-		cal.setTimeInMillis(ts);
+		StringBuilder b = new StringBuilder();
+		appendStatistics(b, "Cell Towers", markersCell != null ? markersCell.getStats() : null);
+		b.append("\n\n");
+		appendStatistics(b, "Wifi", markersWifi != null ? markersWifi.getStats() : null);
 		
-		SimpleDateFormat fmt = new SimpleDateFormat("yyy.MM.dd h:mm a");
+		new AlertDialog.Builder(this).setTitle("Shown Locations")
+		.setMessage(b)
+		.setIcon(android.R.drawable.ic_dialog_info)
+		.setPositiveButton("Ok", new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int which) {}
+		})
+		.show();
+	}
+	
+	private void appendStatistics(StringBuilder b, String title, LocationStats stats)
+	{
+		b.append(title).append(": ");
+		if ( stats == null || stats.count == 0 ) {
+			b.append("none");
+			return;
+		}
+		b.append(stats.count).append(", average accuracy ").append(stats.averageAccuracy()).append(" meters");
 		
-		return fmt.format(cal.getTime());
+		int[] limits = LocationStats.ACCURACY_LIMITS;
+		for ( int i = 0; i < stats.accuracyCounts.length; i++ ) {
+			b.append("\n  ");
+			if ( i < limits.length ) {
+				b.append("up to ").append(limits[i]);
+			} else {
+				b.append("over ").append(limits[limits.length - 1]);
+			}
+			b.append(" m: ").append(stats.accuracyCounts[i]);
+		}
+	}
+	
+	// only used from the UI thread
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyy.MM.dd h:mm a", Locale.getDefault());
+	private final Date             dateValue  = new Date();
+	
+	private CharSequence formatDate(long ts)
+	{
+		dateValue.setTime(ts);
+		return dateFormat.format(dateValue);
 	}
 	
 	private CharSequence formatDateSpan(long minTS, long maxTS)
@@ -484,38 +803,215 @@ public class MainActivity extends MapActivity {
 		return b;
 	}
 	
-	private void drawLocations(List<LocationInformation> pointsCell, List<LocationInformation> pointsWifi) throws NoRootAccessException, RunCommandException {
-		markersWifi.clear();
-		markersCell.clear();
+	/**
+	 * Prepares markers for the store's points within the time window, found by binary
+	 * search in the time index, off the UI thread; showLocations() swaps them in.
+	 */
+	private Markers.Prepared[] prepareLocations(LocationStore store, TimeIndex index, long windowMs) {
+		int from = 0;
+		if ( windowMs > 0 ) {
+			from = index.lowerBound(System.currentTimeMillis() - windowMs);
+		}
+		
+		return new Markers.Prepared[] {
+			preparePoints(store, index, from, LocationStore.TYPE_CELL, markersCell),
+			preparePoints(store, index, from, LocationStore.TYPE_WIFI, markersWifi)
+		};
+	}
+	
+	private void showLocations(Markers.Prepared[] prepared) {
+		markersCell.show(prepared[0]);
+		markersWifi.show(prepared[1]);
+	}
+	
+	/**
+	 * Shows only the points within the time window. The markers and their indexes are
+	 * built in the background; a load already running picks up the new window itself.
+	 */
+	private void applyTimeWindow()
+	{
+		if ( points == null || timeIndex == null || task != null ) return;
+		
+		windowTask = new TimeWindowTask();
+		windowTask.execute((Void[])null);
+	}
+	
+	private TimeWindowTask windowTask = null;
+	
+	private class TimeWindowTask extends AsyncTask<Void, Void, Markers.Prepared[]> {
+		// taken on the UI thread, a load or import can replace them while this runs
+		private final LocationStore store    = points;
+		private final TimeIndex     index    = timeIndex;
+		private final long          windowMs = timeWindowMs;
 		
-		if ( pointsCell != null ) {
-			drawPoints(pointsCell, markersCell);
-		} 
-		if ( pointsWifi != null ) {
-			drawPoints(pointsWifi, markersWifi);
+		@Override
+		protected Markers.Prepared[] doInBackground(Void... params) {
+			return prepareLocations(store, index, windowMs);
+		}
+		
+		@Override
+		protected void onPostExecute(Markers.Prepared[] prepared) {
+			if ( windowTask != this ) return;
+			windowTask = null;
+			if ( points != store ) return;
+			
+			showLocations(prepared);
+			updateLabels();
+			mapView.invalidate();
 		}
 	}
 	
+	private void chooseTimeWindow()
+	{
+		new AlertDialog.Builder(this).setTitle("Show Locations From")
+			.setItems(TIME_WINDOW_NAMES, new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int which) {
+					if ( TIME_WINDOW_MS[which] == timeWindowMs ) return;
+					
+					timeWindowMs = TIME_WINDOW_MS[which];
+					applyTimeWindow();
+				}
+			})
+			.show();
+	}
+	
+	/**
+	 * Asks for a BSSID or cell id, or the start of one, or a latitude and longitude to find
+	 * the nearest shown location to.
+	 */
+	private void showSearch()
+	{
+		final EditText input = new EditText(this);
+		input.setSingleLine(true);
+		input.setHint("BSSID, cell id or latitude, longitude");
+
+		new AlertDialog.Builder(this).setTitle("Find Location")
+			.setView(input)
+			.setPositiveButton("Find", new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int which) {
+					search(input.getText().toString().trim());
+				}
+			})
+			.setNegativeButton("Cancel", null)
+			.show();
+	}
+
+	private void search(String query)
+	{
+		if ( query.length() == 0 ) return;
+
+		Markers[] shown = { markersWifi, markersCell };
+
+		int[] coordinates = parseCoordinates(query);
+		if ( coordinates != null ) {
+			Markers closest = null;
+			int closestRow = -1;
+			double closestDistance = Double.MAX_VALUE;
+			for ( int m = 0; m < shown.length; m++ ) {
+				if ( !mapView.getOverlays().contains(shown[m]) ) continue;
+
+				int row = shown[m].findNearest(coordinates[0], coordinates[1]);
+				if ( row < 0 ) continue;
+
+				LocationStore store = shown[m].getStore();
+				float[] meters = new float[1];
+				Location.distanceBetween(coordinates[0] / 1E6, coordinates[1] / 1E6, store.latE6[row] / 1E6, store.lonE6[row] / 1E6, meters);
+				if ( meters[0] < closestDistance ) {
+					closest = shown[m];
+					closestRow = row;
+					closestDistance = meters[0];
+				}
+			}
+
+			if ( closest == null ) {
+				Toast.makeText(this, "There are no locations shown.", Toast.LENGTH_SHORT).show();
+			} else {
+				showFound(closest.getStore(), closestRow);
+			}
+			return;
+		}
+
+		// matches from each shown set, wifi first; both come out in key order
+		final LocationStore[] foundStores = new LocationStore[SEARCH_MAX_RESULTS];
+		final int[] foundRows = new int[SEARCH_MAX_RESULTS];
+		int found = 0, matches = 0;
+		int[] rows = new int[SEARCH_MAX_RESULTS];
+		for ( int m = 0; m < shown.length; m++ ) {
+			if ( !mapView.getOverlays().contains(shown[m]) ) continue;
+
+			int n = shown[m].findKeys(query, rows);
+			for ( int i = 0; i < n && found < SEARCH_MAX_RESULTS; i++ ) {
+				foundStores[found] = shown[m].getStore();
+				foundRows[found++] = rows[i];
+			}
+			matches += n;
+		}
+
+		if ( found == 0 ) {
+			Toast.makeText(this, "No shown location matches \"" + query + "\".", Toast.LENGTH_SHORT).show();
+		} else if ( matches == 1 ) {
+			showFound(foundStores[0], foundRows[0]);
+		} else {
+			String[] names = new String[found];
+			for ( int i = 0; i < found; i++ ) {
+				names[i] = foundStores[i].getKey(foundRows[i]) + " - " + formatDate(foundStores[i].timestamp[foundRows[i]]);
+			}
+			String title = matches > found ? "First " + found + " of " + matches + " Matches" : matches + " Matches";
+			new AlertDialog.Builder(this).setTitle(title)
+				.setItems(names, new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int which) {
+						showFound(foundStores[which], foundRows[which]);
+					}
+				})
+				.show();
+		}
+	}
+
+	/**
+	 * "lat, lon" or "lat lon" in degrees as E6, or null if the query isn't a location.
+	 */
+	private static int[] parseCoordinates(String query)
+	{
+		String[] parts = query.split("[,\\s]+");
+		if ( parts.length != 2 ) return null;
+
+		try {
+			double lat = Double.parseDouble(parts[0]);
+			double lon = Double.parseDouble(parts[1]);
+			if ( Math.abs(lat) > 90 || Math.abs(lon) > 180 ) return null;
+			return new int[] { (int) Math.round(lat * 1E6), (int) Math.round(lon * 1E6) };
+		} catch ( NumberFormatException ex ) {
+			return null;
+		}
+	}
+
+	/**
+	 * Centers the map on a found location, zooming in if it's too far out to pick it out.
+	 */
+	private void showFound(LocationStore store, int row)
+	{
+		if ( mapView.getZoomLevel() < SEARCH_ZOOM ) {
+			mapView.getController().setZoom(SEARCH_ZOOM);
+		}
+		mapView.getController().animateTo(new GeoPoint(store.latE6[row], store.lonE6[row]));
+
+		Toast.makeText(this, store.getKey(row) + " - " + store.getTimeString(row), Toast.LENGTH_LONG).show();
+	}
+
 	private void zoomToVisibleMarkers()
 	{
-		MapView mapView = (MapView) findViewById(R.id.mapview);
-		
 		int minLat = (int) (  90*1E6);
 		int minLon = (int) ( 180*1E6);
 		int maxLat = (int) ( -90*1E6);
 		int maxLon = (int) (-180*1E6);
-		for ( int i = 0; i < markersWifi.size(); i++ ) {
-			minLat = Math.min(markersWifi.getItem(i).getPoint().getLatitudeE6 (), minLat);
-			minLon = Math.min(markersWifi.getItem(i).getPoint().getLongitudeE6(), minLon);
-			maxLat = Math.max(markersWifi.getItem(i).getPoint().getLatitudeE6 (), maxLat);
-			maxLon = Math.max(markersWifi.getItem(i).getPoint().getLongitudeE6(), maxLon);
-		}
-		for ( int i = 0; i < markersCell.size(); i++ ) {
-			minLat = Math.min(markersCell.getItem(i).getPoint().getLatitudeE6 (), minLat);
-			minLon = Math.min(markersCell.getItem(i).getPoint().getLongitudeE6(), minLon);
-			maxLat = Math.max(markersCell.getItem(i).getPoint().getLatitudeE6 (), maxLat);
-			maxLon = Math.max(markersCell.getItem(i).getPoint().getLongitudeE6(), maxLon);
-		}		
+		LocationStats[] shown = { markersWifi.getStats(), markersCell.getStats() };
+		for ( int i = 0; i < shown.length; i++ ) {
+			if ( shown[i] == null || shown[i].count == 0 ) continue;
+			minLat = Math.min(shown[i].minLatE6, minLat);
+			minLon = Math.min(shown[i].minLonE6, minLon);
+			maxLat = Math.max(shown[i].maxLatE6, maxLat);
+			maxLon = Math.max(shown[i].maxLonE6, maxLon);
+		}
 		
 		int centerLat = minLat + ((maxLat-minLat)/2);
 		int centerLon = minLon + ((maxLon-minLon)/2);
@@ -552,27 +1048,62 @@ public class MainActivity extends MapActivity {
 		itemHeatmap.setCheckable(true);
 		itemHeatmap.setChecked(true);
 		
+		MenuItem itemDensity = menu.add(Menu.NONE, MENU_ITEM_DENSITY, Menu.NONE, "Show Density Map");
+		itemDensity.setCheckable(true);
+		itemDensity.setChecked(false);
+		
 		MenuItem itemAbout = menu.add(Menu.NONE, MENU_ITEM_ABOUT, Menu.NONE, "About");
 		itemAbout.setIcon(android.R.drawable.ic_menu_info_details);
 		
 		MenuItem itemReplay = menu.add(Menu.NONE, MENU_ITEM_REPLAY, Menu.NONE, "Play Tracks");
 		itemReplay.setIcon(android.R.drawable.ic_media_play);
 
-		MenuItem itemExport = menu.add(Menu.NONE, MENU_ITEM_EXPORT, Menu.NONE, "Export to GPX");
+		MenuItem itemExport = menu.add(Menu.NONE, MENU_ITEM_EXPORT, Menu.NONE, "Export Locations");
 		itemExport.setIcon(android.R.drawable.ic_menu_save);
 		
 		MenuItem itemZoom = menu.add(Menu.NONE, MENU_ITEM_ZOOM, Menu.NONE, "Zoom to All");
 		itemZoom.setIcon(android.R.drawable.ic_menu_zoom);
 
+		MenuItem itemSearch = menu.add(Menu.NONE, MENU_ITEM_SEARCH, Menu.NONE, "Find Location");
+		itemSearch.setIcon(android.R.drawable.ic_menu_search);
+
 		MenuItem itemReload = menu.add(Menu.NONE, MENU_ITEM_RELOAD, Menu.NONE, "Reload Points");
+		
+		MenuItem itemImport = menu.add(Menu.NONE, MENU_ITEM_IMPORT, Menu.NONE, "Import Archive");
+		itemImport.setIcon(android.R.drawable.ic_menu_upload);
+		
+		MenuItem itemHistory = menu.add(Menu.NONE, MENU_ITEM_HISTORY, Menu.NONE, "Show History");
+		itemHistory.setIcon(android.R.drawable.ic_menu_month);
+		
+		menu.add(Menu.NONE, MENU_ITEM_RENDER, Menu.NONE, "Render Markers in Background");
+		
+		MenuItem itemTimeWindow = menu.add(Menu.NONE, MENU_ITEM_TIME_WINDOW, Menu.NONE, "Time Window");
+		itemTimeWindow.setIcon(android.R.drawable.ic_menu_recent_history);
+		
+		if ( Util.isDebugBuild(this) && markersBenchmark() != null ) {
+			menu.add(Menu.NONE, MENU_ITEM_BENCHMARK, Menu.NONE, "Benchmark Markers");
+		}
 
 		return super.onCreateOptionsMenu(menu);
 	}
 	
+	/**
+	 * A new MarkersBenchmark, or null in a release build. It's in debug/src, which only
+	 * debug builds compile (see build.xml), so it's looked up by name.
+	 */
+	private AsyncTask<Void, ?, ?> markersBenchmark() {
+		try {
+			Class<?> benchmark = Class.forName(MainActivity.class.getPackage().getName() + ".MarkersBenchmark");
+			return (AsyncTask<Void, ?, ?>) benchmark.getConstructor(MainActivity.class).newInstance(this);
+		} catch ( Exception ex ) {
+			return null;
+		}
+	}
+	
 	@Override
 	public boolean onPrepareOptionsMenu(Menu menu) {		
 		MenuItem itemReplay = menu.findItem(MENU_ITEM_REPLAY);
-		if ( replayIterator != null && replayIterator.hasNext() ) {
+		if ( isReplaying() ) {
 			itemReplay.setTitle("Stop Playing");
 			itemReplay.setIcon(android.R.drawable.ic_media_pause);
 		} else {
@@ -585,8 +1116,6 @@ public class MainActivity extends MapActivity {
 	
 	@Override
 	public boolean onMenuItemSelected(int featureId, MenuItem item) {
-		MapView mapView = (MapView) findViewById(R.id.mapview);
-
 		if ( item.getItemId() == MENU_ITEM_WIFI ) {
 			if ( item.isChecked() ) {
 				item.setTitle("Show Wifi Locations");
@@ -609,6 +1138,8 @@ public class MainActivity extends MapActivity {
 			item.setChecked(!item.isChecked());
 		} else if ( item.getItemId() == MENU_ITEM_ZOOM ) {
 			zoomToVisibleMarkers();
+		} else if ( item.getItemId() == MENU_ITEM_SEARCH ) {
+			showSearch();
 		} else if ( item.getItemId() == MENU_ITEM_HEATMAP ) {
 			if ( item.isChecked() ) {
 				item.setTitle("Enable Heatmap");
@@ -620,20 +1151,27 @@ public class MainActivity extends MapActivity {
 				markersWifi.setDrawCircles(true);
 			}
 			
-			int widthPx  = mapView.getWidth();
-			double distanceAcrossMeters = calculateDistanceAcrossMeters(mapView);
-			double metersPerPixel = distanceAcrossMeters / widthPx;
-			boolean zoomedTooFarOut = metersPerPixel > THRESHOLD_HEATMAP;
+			boolean zoomedTooFarOut = metersPerPixel(mapView) > THRESHOLD_HEATMAP;
 			
 			if ( zoomedTooFarOut ) {
 				Toast.makeText(this, "Heatmap is only visible when zoomed in closer.", Toast.LENGTH_SHORT).show();
 			}
 			
+			mapView.invalidate();
+			item.setChecked(!item.isChecked());
+		} else if ( item.getItemId() == MENU_ITEM_DENSITY ) {
+			if ( item.isChecked() ) {
+				item.setTitle("Show Density Map");
+				mapView.getOverlays().remove(heatmap);
+			} else {
+				item.setTitle("Hide Density Map");
+				mapView.getOverlays().add(0, heatmap); // underneath the markers
+			}
 			mapView.invalidate();
 			item.setChecked(!item.isChecked());
 		} else if ( item.getItemId() == MENU_ITEM_REPLAY ) {
-			if ( replayIterator != null && replayIterator.hasNext() ) {
-				replayIterator = null;
+			if ( isReplaying() ) {
+				stopReplay();
 			} else {
 				startReplayOfTracks();			
 			}
@@ -641,88 +1179,272 @@ public class MainActivity extends MapActivity {
 			AboutDialog dialog = new AboutDialog(this);
 			dialog.show();
 		} else if ( item.getItemId() == MENU_ITEM_EXPORT ) {
-			exportData();
+			chooseExportFormat();
 		} else if ( item.getItemId() == MENU_ITEM_RELOAD ) {
 			loadOrReloadData(true);
+		} else if ( item.getItemId() == MENU_ITEM_IMPORT ) {
+			chooseArchive();
+		} else if ( item.getItemId() == MENU_ITEM_RENDER ) {
+			if ( item.isChecked() ) {
+				item.setTitle("Render Markers in Background");
+			} else {
+				item.setTitle("Render Markers Directly");
+			}
+			setBackgroundRendering(!item.isChecked());
+			item.setChecked(!item.isChecked());
+		} else if ( item.getItemId() == MENU_ITEM_HISTORY ) {
+			showHistory();
+		} else if ( item.getItemId() == MENU_ITEM_TIME_WINDOW ) {
+			chooseTimeWindow();
+		} else if ( item.getItemId() == MENU_ITEM_BENCHMARK ) {
+			markersBenchmark().execute((Void[])null);
 		}
 		return super.onMenuItemSelected(featureId, item);
 	}
 
-	private int trackPosition = -1;
-	
-    private final Handler mMsgHandler = new Handler() {
-    	public void handleMessage(android.os.Message msg) {
-    		if ( trackPosition < 0 || pointsAll == null || replayIterator == null || !replayIterator.hasNext() ) {
-    			trackPosition = -1;
-    			replayIterator = null;
-    			findViewById(R.id.replayProgress).setVisibility(View.GONE);
-    			return;
-    		}
-    		
-    		final long timeNow = System.currentTimeMillis();
-    		
-			LocationInformation item = replayIterator.next();
-			GeoPoint point = item.getGeoPoint();
-			if ( point != null ) { // null items are in africa and should be ignored
-				MapView mapView = (MapView) findViewById(R.id.mapview);
-				mapView.getController().animateTo(point, new Runnable() {
-					@Override
-					public void run() {
-						long timeAfter = System.currentTimeMillis();
-						long timeLeft  = 1-((timeAfter-timeNow)/1000);
-						mMsgHandler.sendMessageDelayed(new Message(), Math.min(100, timeLeft));
-					}
-				});
-				mapView.getController().setZoom(14);
+	private static final int   REPLAY_FRAME_MS = 50;
+	private static final int[] REPLAY_SPEEDS   = { 2, 10, 50, 250, 1000, 5000 }; // points per second
+	private static final int   REPLAY_ANIMATE_UP_TO = 2; // faster than this the map just jumps
+	
+	// replay runs over timeIndex positions [replayStart, replayEnd); -1 when not replaying
+	private int     replayPosition  = -1;
+	private int     replayStart     = 0;
+	private int     replayEnd       = 0;
+	private int     replaySpeed     = 0;  // index into REPLAY_SPEEDS
+	private double  replayCarry     = 0;  // part of a point left over from the last frame
+	private long    replayLastFrame = 0;
+	private boolean replaySeeking   = false;
+	
+	private View     replayPanel;
+	private SeekBar  replaySeek;
+	private TextView replayTime;
+	private TextView replayDetail;
+	private Button   replaySpeedButton;
+	
+	/**
+	 * One frame every REPLAY_FRAME_MS. The frame moves on however many points the speed
+	 * makes due since the last one and only shows the last of them, so fast replays
+	 * don't fall behind.
+	 */
+	private final Handler replayHandler = new Handler() {
+		public void handleMessage(android.os.Message msg) {
+			if ( !isReplaying() ) {
+				stopReplay();
+				return;
+			}
+			
+			long now = SystemClock.uptimeMillis();
+			double due = replayCarry + (now - replayLastFrame) * REPLAY_SPEEDS[replaySpeed] / 1000.0;
+			replayLastFrame = now;
+			
+			int steps = (int) due;
+			replayCarry = due - steps;
+			
+			if ( steps > 0 && !replaySeeking ) {
+				if ( replayPosition >= replayEnd - 1 ) {
+					stopReplay(); // the last point has had its frame
+					return;
+				}
+				// steps past the end still stop on the last point
+				int next = Math.min(replayPosition + steps, replayEnd - 1);
+				int batch = next - replayPosition;
+				replayPosition = next;
+				showReplayPosition(batch, REPLAY_SPEEDS[replaySpeed] <= REPLAY_ANIMATE_UP_TO);
+			}
+			
+			sendEmptyMessageDelayed(0, REPLAY_FRAME_MS);
+		};
+	};
+	
+	private void initReplayViews()
+	{
+		replayPanel       = findViewById(R.id.replayProgress);
+		replaySeek        = (SeekBar) findViewById(R.id.seekReplay);
+		replayTime        = (TextView) findViewById(R.id.descReplay1);
+		replayDetail      = (TextView) findViewById(R.id.descReplay2);
+		replaySpeedButton = (Button) findViewById(R.id.replaySpeed);
+		
+		replaySeek.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+			public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+				if ( !fromUser || !isReplaying() ) return;
 				
-				((TextView)findViewById(R.id.descReplay1)).setText(formatDate(item.timestamp));				
-				((TextView)findViewById(R.id.descReplay2)).setText(item.type + " - " + item.key + " - " + item.accuracy + " meters");				
-			} else {
-				mMsgHandler.sendMessageDelayed(new Message(), 1000);				
+				replayPosition = replayStart + progress;
+				showReplayPosition(1, false);
+			}
+			
+			public void onStartTrackingTouch(SeekBar seekBar) {
+				replaySeeking = true;
 			}
-
-			trackPosition++;			
 			
-			findViewById(R.id.replayProgress).setVisibility(View.VISIBLE);
-			((ProgressBar)findViewById(R.id.progressReplay)).setMax(pointsAll.size());
-			((ProgressBar)findViewById(R.id.progressReplay)).setProgress(trackPosition);
-    	};
-    };
-    
-	private Iterator<LocationInformation> replayIterator;	private void startReplayOfTracks()
+			public void onStopTrackingTouch(SeekBar seekBar) {
+				replaySeeking   = false;
+				replayCarry     = 0;
+				replayLastFrame = SystemClock.uptimeMillis();
+			}
+		});
+		
+		replaySpeedButton.setOnClickListener(new View.OnClickListener() {
+			public void onClick(View v) {
+				replaySpeed = (replaySpeed + 1) % REPLAY_SPEEDS.length;
+				replaySpeedButton.setText(REPLAY_SPEEDS[replaySpeed] + "/s");
+			}
+		});
+		replaySpeedButton.setText(REPLAY_SPEEDS[replaySpeed] + "/s");
+		
+		findViewById(R.id.dataSummary).setOnClickListener(new View.OnClickListener() {
+			public void onClick(View v) {
+				showStatistics();
+			}
+		});
+	}
+	
+	/**
+	 * Shows the point at the replay position, moving the map to the newest of the last
+	 * batch points that has a location.
+	 */
+	private void showReplayPosition(int batch, boolean animate)
+	{
+		int row = timeIndex.getRow(replayPosition);
+		
+		for ( int p = replayPosition; p > replayPosition - batch && p >= replayStart; p-- ) {
+			int located = timeIndex.getRow(p);
+			if ( points.hasLocation(located) ) { // items without a location are in africa and should be ignored
+				GeoPoint point = new GeoPoint(points.latE6[located], points.lonE6[located]);
+				if ( animate ) {
+					mapView.getController().animateTo(point);
+				} else {
+					mapView.getController().setCenter(point);
+				}
+				break;
+			}
+		}
+		
+		replayTime.setText(formatDate(points.timestamp[row]));
+		replayDetail.setText(points.getTypeName(row) + " - " + points.getKey(row) + " - " + points.accuracy[row] + " meters");
+		replaySeek.setProgress(replayPosition - replayStart);
+	}
+	
+	private boolean isReplaying()
+	{
+		return replayPosition >= 0 && timeIndex != null && replayPosition < replayEnd;
+	}
+	
+	/**
+	 * Replays the points in the current time window, oldest first.
+	 */
+	private void startReplayOfTracks()
+	{
+		if ( timeIndex == null ) return;
+		
+		replayStart = timeWindowMs > 0 ? timeIndex.lowerBound(System.currentTimeMillis() - timeWindowMs) : 0;
+		replayEnd   = timeIndex.size();
+		if ( replayStart >= replayEnd ) {
+			Toast.makeText(this, "There are no locations to play.", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		
+		replayPosition  = replayStart;
+		replayCarry     = 0;
+		replayLastFrame = SystemClock.uptimeMillis();
+		
+		replaySeek.setMax(replayEnd - replayStart - 1);
+		replayPanel.setVisibility(View.VISIBLE);
+		mapView.getController().setZoom(14);
+		showReplayPosition(1, false);
+		
+		replayHandler.sendEmptyMessageDelayed(0, REPLAY_FRAME_MS);
+	}
+	
+	private void stopReplay()
 	{
-		trackPosition = 0;
-		replayIterator = pointsAll.iterator();		
-		mMsgHandler.sendMessageDelayed(new Message(), 0);
+		replayPosition = -1;
+		replayHandler.removeMessages(0);
+		replayPanel.setVisibility(View.GONE);
 	}
 
-	private List<LocationInformation> loadPoints(String fileName, String type) throws NoRootAccessException, RunCommandException {
-		ShellCommand cmd = new ShellCommand();
-		CommandResult r = cmd.su.runWaitFor("cat " + fileName);
+	/**
+	 * Removes cache copies left behind by a load that didn't finish.
+	 */
+	private void deleteCacheCopies() {
+		File[] files = getCacheDir().listFiles();
+		if ( files == null ) return;
+		for ( int i = 0; i < files.length; i++ ) {
+			if ( files[i].getName().startsWith(CACHE_COPY_PREFIX) ) files[i].delete();
+		}
+	}
 
-		if (!r.success()) {
-			if ( r.stderr.contains("No such file") || r.exit_value == 1 ) {
-				return null;
-			} else {
-				throw new RunCommandException(r.stderr);
+	private File snapshotFile() {
+		return new File(getFilesDir(), "locations.snapshot");
+	}
+	
+	/**
+	 * Has root copy the cache file into this app's cache dir, readable by the app only.
+	 * Returns null if the file doesn't exist or couldn't be copied there.
+	 */
+	private File copyCacheFile(String fileName) {
+		File copy;
+		try {
+			// the app creates the file, under a random name, so it's the app's and mode 600;
+			// root only writes into it, which keeps the owner
+			copy = File.createTempFile(CACHE_COPY_PREFIX, ".tmp", getCacheDir());
+		} catch ( IOException ex ) {
+			Log.v("LocationCacheViewer", "Unable to create a copy of " + fileName + ": " + ex.getMessage());
+			return null;
+		}
+		CommandResult r = shell.root.run("cat " + fileName + " > " + copy.getPath() + " && chmod 600 " + copy.getPath());
+		
+		if ( !r.success() || !copy.canRead() ) {
+			Log.v("LocationCacheViewer", "Unable to copy " + fileName + ": " + r.stderr);
+			copy.delete();
+			return null;
+		}
+		return copy;
+	}
+	
+	/**
+	 * Parses the cache file as root's cat writes it out, without holding the whole file.
+	 * It runs on a shell of its own, so the other file's load isn't held up behind it.
+	 * Returns false if the file doesn't exist.
+	 */
+	private boolean streamCacheFile(String fileName, final LocationCacheParser.RecordHandler handler) throws IOException, RunCommandException {
+		ShellSession session = shell.openSession();
+		CommandResult r;
+		try {
+			r = session.runStreaming("cat " + fileName, new ShellCommand.StreamConsumer() {
+				public void consume(InputStream stdout) throws IOException {
+					LocationCacheParser.parseLocationCacheStream(stdout, handler);
+				}
+			});
+		} finally {
+			session.close();
+		}
+
+		if ( !r.success() ) {
+			if ( (r.stderr != null && r.stderr.contains("No such file")) || (r.exit_value != null && r.exit_value == 1) ) {
+				return false;
 			}
-		} else {
-			Log.v("LocationCacheViewer", "Success!");
-			
-			return LocationCacheParser.parseLocationCacheFile(r.stdout, type);
+			throw new RunCommandException(r.stderr);
 		}
-	}	
+		return true;
+	}
 	
-	private void drawPoints(List<LocationInformation> locations, Markers markerSet)
+	/**
+	 * The store's points of one type from position from of the time index on, with their
+	 * indexes, for markerSet.show().
+	 */
+	private Markers.Prepared preparePoints(LocationStore store, TimeIndex index, int from, byte type, Markers markerSet)
 	{
-		for ( LocationInformation location : locations )
+		int[] rows  = new int[index.size() - from];
+		int   count = 0;
+		for ( int i = from; i < index.size(); i++ )
 		{
-			GeoPoint p = location.getGeoPoint();
-			if ( p == null ) continue;			
+			int row = index.getRow(i);
+			if ( store.type[row] != type || !store.hasLocation(row) ) continue;
 			
-			LocationInformationOverlayItem item = new LocationInformationOverlayItem(location);
-			markerSet.addOverlay(item);
+			rows[count++] = row;
 		}		
+
+		return markerSet.prepare(store, rows, count);
 	}
 
 
@@ -733,16 +1455,78 @@ public class MainActivity extends MapActivity {
 		private int      fillColor;
 		private  boolean  drawCircles;
 		
-		private ArrayList<LocationInformationOverlayItem> mOverlays = new ArrayList<LocationInformationOverlayItem>();
+		// overlay items are created by the ItemizedOverlay from these store rows on populate()
+		private LocationStore store = null;
+		private int[]         rows  = new int[256];
+		private int           count = 0;
+
+		private SpatialIndex   index    = null;
+		private ClusterPyramid clusters = null;
+		private LocationStats  stats    = null;
+		private MercatorPoints mercator = null;
+		private KeyIndex       keys     = null;
+
+		// bumped whenever the shown points change, so a rendered buffer knows it's out of date
+		private volatile int version = 0;
+
+		// kept between frames, draw() runs on every pan and zoom step
+		private final Paint translucentBlob = new Paint();
+		private final Paint spotPoint       = new Paint();
+		private final Paint clusterBlob     = new Paint();
+		private final Paint clusterPoint    = new Paint();
+		private final Paint clusterText     = new Paint();
+		private final Paint bufferPaint     = new Paint();
+		private final Point ptPx            = new Point();
+		private final RectF bufferRect      = new RectF();
+
+		private final MapViewport frame     = new MapViewport();
+		private final Layer       uiLayer   = new Layer();
+
+		// with a render thread: it draws into back while the UI thread shows front, then back
+		// becomes front and the old front is freed, so only one buffer is held between renders.
+		// Markers are made off the UI thread too (MarkersBenchmark), hence the main looper.
+		private final Layer       renderLayer = new Layer();
+		private final MapViewport frontView   = new MapViewport();
+		private final Handler     uiHandler   = new Handler(Looper.getMainLooper());
+		private Bitmap  front = null;
+		private Bitmap  back  = null;
+		private int     frontVersion = -1;
+		private boolean frontCircles = false;
+		private boolean rendering    = false;
 
 		public Markers(Drawable defaultMarker, Context cont) {
 			super(boundCenterBottom(defaultMarker));
 			this.ctx = cont;
+
+			translucentBlob.setAntiAlias(true);
+			translucentBlob.setStrokeWidth(1.0f);
+			translucentBlob.setStyle(Style.FILL_AND_STROKE);
+
+			// a round point as wide as the 5 pixel circles drawn one at a time before
+			spotPoint.setAntiAlias(true);
+			spotPoint.setStrokeWidth(2 * SPOT_RADIUS + 1);
+			spotPoint.setStrokeCap(Paint.Cap.ROUND);
+			spotPoint.setStyle(Style.FILL_AND_STROKE);
+
+			clusterBlob.setAntiAlias(true);
+			clusterBlob.setStyle(Style.FILL);
+
+			clusterPoint.setAntiAlias(true);
+			clusterPoint.setStyle(Style.FILL);
+
+			clusterText.setAntiAlias(true);
+			clusterText.setColor(0xffffffff);
+			clusterText.setTextSize(10);
+			clusterText.setTextAlign(Paint.Align.CENTER);
+
+			bufferPaint.setFilterBitmap(true);
+
+			setFillColor(fillColor);
 		}
 
 		@Override
 		protected LocationInformationOverlayItem createItem(int i) {
-			return mOverlays.get(i);
+			return new LocationInformationOverlayItem(store, rows[i]);
 		}
 
 		@Override
@@ -753,71 +1537,413 @@ public class MainActivity extends MapActivity {
 
 		@Override
 		protected boolean onTap(int index) {
-			Toast.makeText(this.ctx, mOverlays.get(index).getTitle().toString() + " - " + mOverlays.get(index).getSnippet(), Toast.LENGTH_SHORT).show();			
+			int row = rows[index];
+			Toast.makeText(this.ctx, store.getKey(row) + " - " + store.getTimeString(row), Toast.LENGTH_SHORT).show();			
 			return super.onTap(index);         
 		}
 
 		@Override
 		public int size() {
-			return mOverlays.size();
+			return count;
+		}
+
+		public int getRow(int i) {
+			return rows[i];
 		}
 
-		public void addOverlay(LocationInformationOverlayItem item) {
-			mOverlays.add(item);
+		/**
+		 * Summary of the shown points, gathered when they were prepared.
+		 */
+		public LocationStats getStats() {
+			return stats;
+		}
+
+		public LocationStore getStore() {
+			return store;
+		}
+
+		public void setStore(LocationStore store) {
+			this.store = store;
+		}
+
+		/**
+		 * Writes the store rows of the shown points whose keys start with prefix (case
+		 * ignored) to out, in key order. The key index comes with the prepared points; only
+		 * points set with setOverlays() or addOverlay() are sorted here, by the first search.
+		 *
+		 * @return how many match, which can be more than fit in out
+		 */
+		public int findKeys(String prefix, int[] out) {
+			if ( keys == null ) {
+				keys = new KeyIndex(store, rows, count);
+			}
+			int matches = keys.findPrefix(prefix, out);
+			for ( int i = 0; i < matches && i < out.length; i++ ) {
+				out[i] = rows[out[i]];
+			}
+			return matches;
+		}
+
+		/**
+		 * Store row of the shown point closest to the location, or -1 if none are shown.
+		 */
+		public int findNearest(int latE6, int lonE6) {
+			SpatialIndex searched = index != null ? index : new SpatialIndex(store, rows, count);
+			int nearest = searched.nearest(latE6, lonE6);
+			return nearest < 0 ? -1 : rows[nearest];
+		}
+
+		/**
+		 * Replaces the shown points with the given store rows and populates once. Adding the
+		 * points one at a time with addOverlay() populates after each, which is quadratic.
+		 */
+		public void setOverlays(LocationStore store, int[] storeRows, int rowCount) {
+			this.store = store;
+			rows     = storeRows;
+			count    = rowCount;
+			index    = null;
+			clusters = null;
+			mercator = null;
+			keys     = null;
+			version++;
+			setLastFocusedIndex(-1);
+			populate();
+		}
+
+		public void addOverlay(int row) {
+			if ( count == rows.length ) {
+				int[] grown = new int[Math.max(16, rows.length * 2)];
+				System.arraycopy(rows, 0, grown, 0, count);
+				rows = grown;
+			}
+			rows[count++] = row;
+			index    = null;
+			clusters = null;
+			mercator = null;
+			keys     = null;
+			version++;
 			setLastFocusedIndex(-1);
 			populate();
 		}
 		
 		public void clear() {
-			mOverlays.clear();
+			count = 0;
+			index    = null;
+			clusters = null;
+			mercator = null;
+			stats    = null;
+			keys     = null;
+			version++;
+			setLastFocusedIndex(-1);
+			populate();
+		}
+
+		/**
+		 * Builds the spatial index used to skip off-screen points while drawing and the
+		 * clusters drawn when zoomed out. Call once all the points have been added - adding
+		 * more drops them.
+		 */
+		public void buildIndex() {
+			adopt(new Prepared(store, rows, count));
+		}
+
+		/**
+		 * Builds the indexes for the given store rows without showing them, so it can run
+		 * off the UI thread while the current points are still drawn.
+		 */
+		public Prepared prepare(LocationStore store, int[] storeRows, int rowCount) {
+			return new Prepared(store, storeRows, rowCount);
+		}
+
+		/**
+		 * Replaces the shown points with prepared ones and populates once. On the UI thread.
+		 */
+		public void show(Prepared prepared) {
+			store = prepared.store;
+			rows  = prepared.rows;
+			count = prepared.count;
+			adopt(prepared);
 			setLastFocusedIndex(-1);
 			populate();
 		}
+
+		private void adopt(Prepared prepared) {
+			index    = prepared.index;
+			clusters = prepared.clusters;
+			stats    = prepared.stats;
+			mercator = prepared.mercator;
+			keys     = prepared.keys;
+			version++;
+		}
+
+		/**
+		 * Store rows and the indexes over them, ready to be shown.
+		 */
+		public class Prepared {
+			final LocationStore  store;
+			final int[]          rows;
+			final int            count;
+			final SpatialIndex   index;
+			final ClusterPyramid clusters;
+			final LocationStats  stats;
+			final MercatorPoints mercator;
+			final KeyIndex       keys;
+
+			Prepared(LocationStore store, int[] rows, int count) {
+				this.store = store;
+				this.rows  = rows;
+				this.count = count;
+				index    = new SpatialIndex(store, rows, count);
+				clusters = new ClusterPyramid(store, rows, count);
+				stats    = new LocationStats(store, rows, count);
+				mercator = new MercatorPoints(store, rows, count);
+				keys     = new KeyIndex(store, rows, count);
+			}
+		}
+
+		/**
+		 * The points and indexes one draw uses, taken together so a draw on the render thread
+		 * sees a consistent set while the UI thread swaps in new ones, and that draw's
+		 * scratch arrays.
+		 */
+		private class Layer {
+			LocationStore  store;
+			int[]          rows;
+			int            count;
+			SpatialIndex   index;
+			ClusterPyramid clusters;
+			MercatorPoints mercator;
+			boolean        drawCircles;
+
+			int[]   visible = new int[0];
+			float[] spots   = new float[512]; // x, y pairs for drawPoints
+
+			/**
+			 * On the UI thread.
+			 */
+			void capture() {
+				if ( mercator() == null ) {
+					Markers.this.mercator = new MercatorPoints(Markers.this.store, Markers.this.rows, Markers.this.count);
+				}
+				store       = Markers.this.store;
+				rows        = Markers.this.rows;
+				count       = Markers.this.count;
+				index       = Markers.this.index;
+				clusters    = Markers.this.clusters;
+				mercator    = Markers.this.mercator;
+				drawCircles = Markers.this.drawCircles;
+			}
+
+			private MercatorPoints mercator() {
+				MercatorPoints projected = Markers.this.mercator;
+				return projected != null && projected.x.length >= Markers.this.count ? projected : null;
+			}
+		}
+
+		/**
+		 * Positions of the points that could be visible in the view, padded by the largest
+		 * accuracy circle. Falls back to every point if there's no index yet.
+		 */
+		private int findVisible(Layer layer, MapViewport view) {
+			if ( layer.visible.length < layer.count ) layer.visible = new int[layer.count];
+
+			SpatialIndex idx = layer.index;
+			if ( idx == null ) {
+				for ( int i = 0; i < layer.count; i++ ) layer.visible[i] = i;
+				return layer.count;
+			}
+
+			long latHalf = view.latSpanE6 / 2;
+			long lonHalf = view.lonSpanE6 / 2;
+
+			double cosLat = Math.max(0.01, Math.cos(Math.toRadians(view.centerLatE6 / 1E6)));
+			long latPad = Math.max(latHalf / 5, (long) (idx.getMaxAccuracy() / 111320.0 * 1E6));
+			long lonPad = Math.max(lonHalf / 5, (long) (idx.getMaxAccuracy() / 111320.0 * 1E6 / cosLat));
+
+			long latLow  = view.centerLatE6 - latHalf - latPad;
+			long latHigh = view.centerLatE6 + latHalf + latPad;
+			long lonLow  = view.centerLonE6 - lonHalf - lonPad;
+			long lonHigh = view.centerLonE6 + lonHalf + lonPad;
+
+			if ( lonLow < -180000000L || lonHigh > 180000000L ) {
+				// view wraps around the date line - just search every longitude
+				lonLow  = -180000000L;
+				lonHigh =  180000000L;
+			}
+
+			return idx.query(latLow, latHigh, lonLow, lonHigh, layer.visible);
+		}
 		
 		@Override
 		public void draw(Canvas canvas, MapView mapView, boolean shadow) {
-			int widthPx  = mapView.getWidth();
-			double distanceAcrossMeters = calculateDistanceAcrossMeters(mapView);
-			double metersPerPixel = distanceAcrossMeters / widthPx;
+			frame.set(mapView, worldPixels(mapView), ptPx);
 
-			boolean zoomedTooFarOut = metersPerPixel > THRESHOLD_HEATMAP;
+			boolean zoomedTooFarOut = frame.metersPerPixel > THRESHOLD_HEATMAP;
+			boolean layered = zoomedTooFarOut ? clusters != null : drawCircles;
 			
-			if ( drawCircles && !zoomedTooFarOut ) {		
-				
-	            Projection projection = mapView.getProjection();
-				Point ptPx = new Point();
-				LocationInformationOverlayItem item = null;
-	
-				Paint translucentBlob = new Paint();
-	            translucentBlob.setAntiAlias(true);
-	            translucentBlob.setStrokeWidth(1.0f);
-	            translucentBlob.setColor(getFillColor());
-	            translucentBlob.setStyle(Style.FILL_AND_STROKE);			
-	            translucentBlob.setAlpha(20);
-
-				Paint spotPoint = new Paint();
-				spotPoint.setAntiAlias(true);
-				spotPoint.setStrokeWidth(1.0f);
-				spotPoint.setColor(getFillColor());
-				spotPoint.setStyle(Style.FILL_AND_STROKE);			
-				spotPoint.setAlpha(20);
-
-				for ( int i = 0; i < mOverlays.size(); i++ ) {
-					item = mOverlays.get(i);
-	
-					projection.toPixels(item.getPoint(), ptPx);
-					
-					float width = (float)(item.location.accuracy/metersPerPixel);
-					if ( width > 5 ) {
-						canvas.drawCircle((float)ptPx.x, (float)ptPx.y, (float)(item.location.accuracy/metersPerPixel), translucentBlob);
-					} else {
-						canvas.drawCircle((float)ptPx.x, (float)ptPx.y, 5, spotPoint);
-					}
-				}
-			} else {
+			if ( !layered ) {
 				super.draw(canvas, mapView, shadow);
+			} else if ( renderHandler != null ) {
+				drawBuffered(canvas, mapView);
+			} else {
+				uiLayer.capture();
+				drawLayer(canvas, uiLayer, frame);
+			}
+		}
+
+		/**
+		 * Clusters when zoomed out, otherwise accuracy circles.
+		 */
+		private void drawLayer(Canvas canvas, Layer layer, MapViewport view) {
+			if ( layer.count == 0 ) return;
+
+			if ( view.metersPerPixel > THRESHOLD_HEATMAP ) {
+				if ( layer.clusters != null ) drawClusters(canvas, layer, view);
+			} else if ( layer.drawCircles ) {
+				drawAccuracy(canvas, layer, view);
+			}
+		}
+
+		/**
+		 * Shows the last buffer the render thread finished, moved and scaled to where it
+		 * belongs in the current view, and asks for a new one once it no longer covers the
+		 * screen or the points have changed. The buffer is the screen plus a quarter screen
+		 * on every side, so small pans don't need one.
+		 */
+		private void drawBuffered(Canvas canvas, MapView mapView) {
+			boolean current = front != null && frontVersion == version && frontCircles == drawCircles
+				&& frontView.zoom == frame.zoom && frontView.contains(frame);
+			if ( !current && !rendering ) {
+				requestRender(mapView);
+			}
+
+			if ( front != null ) {
+				bufferRect.set(frame.toScreenX(frontView.left()), frame.toScreenY(frontView.top()),
+						frame.toScreenX(frontView.right()), frame.toScreenY(frontView.bottom()));
+				canvas.drawBitmap(front, null, bufferRect, bufferPaint);
+			}
+		}
+
+		private void requestRender(final MapView mapView) {
+			final MapViewport view = new MapViewport();
+			view.setExpanded(frame, frame.width / 4, frame.height / 4);
+			if ( view.width <= 0 || view.height <= 0 ) return;
+
+			// 4444 halves the buffer; the layers are flat translucent fills that don't need more
+			if ( back == null || back.getWidth() != view.width || back.getHeight() != view.height ) {
+				if ( back != null ) back.recycle();
+				back = Bitmap.createBitmap(view.width, view.height, Bitmap.Config.ARGB_4444);
+			}
+			final Bitmap target = back;
+			final int renderVersion = version;
+			renderLayer.capture();
+			rendering = true;
+
+			renderHandler.post(new Runnable() {
+				public void run() {
+					target.eraseColor(0);
+					drawLayer(new Canvas(target), renderLayer, view);
+
+					uiHandler.post(new Runnable() {
+						public void run() {
+							rendering    = false;
+							if ( front != null ) front.recycle();
+							back         = null;
+							front        = target;
+							frontVersion = renderVersion;
+							frontCircles = renderLayer.drawCircles;
+							frontView.setExpanded(view, 0, 0);
+							if ( renderHandler == null ) {
+								releaseBuffers();
+							}
+							mapView.invalidate();
+						}
+					});
+				}
+			});
+		}
+
+		/**
+		 * Frees the render buffers, unless one is being drawn into; then that render frees them
+		 * when it's done.
+		 */
+		public void releaseBuffers() {
+			if ( rendering ) return;
+
+			if ( front != null ) front.recycle();
+			if ( back  != null ) back.recycle();
+			front = null;
+			back  = null;
+			frontVersion = -1;
+		}
+
+		/**
+		 * A translucent circle the size of its accuracy for each visible point. Points whose
+		 * circle would be smaller than a spot are collected and drawn in one drawPoints call.
+		 */
+		private void drawAccuracy(Canvas canvas, Layer layer, MapViewport view) {
+			MercatorPoints projected = layer.mercator;
+			int[] accuracy = layer.store.accuracy;
+			int[] rows     = layer.rows;
+
+			int visibleCount = findVisible(layer, view);
+			int[] visible = layer.visible;
+			if ( layer.spots.length < visibleCount * 2 ) {
+				layer.spots = new float[visibleCount * 2];
+			}
+			float[] spots = layer.spots;
+
+			int   centerX   = view.centerX,   centerY   = view.centerY;
+			float centerPxX = view.centerPxX, centerPxY = view.centerPxY;
+			float scale     = view.scale;
+			float pixelsPerMeter = (float) (1 / view.metersPerPixel);
+			int spotCount = 0;
+			for ( int v = 0; v < visibleCount; v++ ) {
+				int i = visible[v];
+				float x = (projected.x[i] - centerX) * scale + centerPxX;
+				float y = (projected.y[i] - centerY) * scale + centerPxY;
+
+				float width = accuracy[rows[i]] * pixelsPerMeter;
+				if ( width > SPOT_RADIUS ) {
+					canvas.drawCircle(x, y, width, translucentBlob);
+				} else {
+					spots[spotCount++] = x;
+					spots[spotCount++] = y;
+				}
+			}
+			if ( spotCount > 0 ) {
+				canvas.drawPoints(spots, 0, spotCount, spotPoint);
+			}
+		}
+
+		/**
+		 * One glyph per cluster cell: a dot sized by how many points it holds, over a
+		 * translucent circle for the cell's mean accuracy.
+		 */
+		private void drawClusters(Canvas canvas, Layer layer, MapViewport view) {
+			ClusterPyramid.Level level = layer.clusters.levelFor(view.metersPerPixel, CLUSTER_CELL_PX);
+
+			long latHalf = view.latSpanE6 / 2 + level.cellE6;
+			long lonHalf = view.lonSpanE6 / 2 + level.cellE6;
+
+			for ( int c = 0; c < level.size; c++ ) {
+				if ( Math.abs((long) level.latE6[c] - view.centerLatE6) > latHalf ) continue;
+				if ( Math.abs((long) level.lonE6[c] - view.centerLonE6) > lonHalf && lonHalf < 180000000L ) continue;
+
+				float x = view.toScreenX(MercatorPoints.x(level.lonE6[c]));
+				float y = view.toScreenY(MercatorPoints.y(level.latE6[c]));
+
+				float radius = (float) Math.min(CLUSTER_CELL_PX / 2, 4 + 2 * (Math.log(level.count[c]) / Math.log(2)));
+				float accuracyRadius = (float) (level.meanAccuracy[c] / view.metersPerPixel);
+				if ( accuracyRadius > radius ) {
+					canvas.drawCircle(x, y, accuracyRadius, clusterBlob);
+				}
+				canvas.drawCircle(x, y, radius, clusterPoint);
+				if ( level.count[c] > 1 ) {
+					canvas.drawText(String.valueOf(level.count[c]), x, y + 4, clusterText);
+				}
 			}
-		}	
+		}
 
 		public void setDrawablePoint(Drawable drawablePoint) {
 			this.drawablePoint = drawablePoint;
@@ -829,6 +1955,16 @@ public class MainActivity extends MapActivity {
 
 		public void setFillColor(int fillColor) {
 			this.fillColor = fillColor;
+
+			// setColor replaces the alpha too
+			translucentBlob.setColor(fillColor);
+			translucentBlob.setAlpha(20);
+			spotPoint.setColor(fillColor);
+			spotPoint.setAlpha(20);
+			clusterBlob.setColor(fillColor);
+			clusterBlob.setAlpha(20);
+			clusterPoint.setColor(fillColor);
+			clusterPoint.setAlpha(160);
 		}
 
 		public int getFillColor() {
@@ -844,21 +1980,51 @@ public class MainActivity extends MapActivity {
 		}
 	}
 
-	private double calculateDistanceAcrossMeters(MapView mapView)
+	/**
+	 * Moves drawing the accuracy circles and clusters onto a render thread. The map then
+	 * only draws the last finished layer bitmaps, so a big layer can't hold up panning.
+	 */
+	private void setBackgroundRendering(boolean on)
 	{
-		double lat1 = mapView.getMapCenter().getLatitudeE6();
-		double lat2 = lat1;
-		
-		int R = 6371; // km
-		double dLat = Math.toRadians(mapView.getLatitudeSpan ()/1E6);
-		double dLon = Math.toRadians(mapView.getLongitudeSpan()/1E6); 
-		double a = Math.sin(dLat/2) * Math.sin(dLat/2) +
-		        Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * 
-		        Math.sin(dLon/2) * Math.sin(dLon/2); 
-		double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1-a)); 
-		double d = R * c;	
-		
-		return d * 1000; // meters
+		if ( on ) {
+			renderThread = new HandlerThread("MarkerRender", Process.THREAD_PRIORITY_DISPLAY);
+			renderThread.start();
+			renderHandler = new Handler(renderThread.getLooper());
+		} else {
+			// after any render already queued, which frees its layer's buffers when it's done
+			final HandlerThread stopping = renderThread;
+			renderHandler.post(new Runnable() {
+				public void run() { stopping.quit(); }
+			});
+			renderThread  = null;
+			renderHandler = null;
+			
+			markersCell.releaseBuffers();
+			markersWifi.releaseBuffers();
+		}
+		mapView.invalidate();
+	}
+	
+	/**
+	 * Width of the whole world in pixels at the map's zoom level, taken from the projection
+	 * the first time the map is at that zoom.
+	 */
+	private float worldPixels(MapView mapView)
+	{
+		int zoom = mapView.getZoomLevel();
+		if ( worldPixels[zoom] == 0 ) {
+			worldPixels[zoom] = mapView.getProjection().metersToEquatorPixels((float) MapViewport.EQUATOR_METERS);
+		}
+		return worldPixels[zoom];
+	}
+	
+	/**
+	 * Ground distance across one pixel at the map's center.
+	 */
+	private double metersPerPixel(MapView mapView)
+	{
+		double lat = Math.toRadians(mapView.getMapCenter().getLatitudeE6() / 1E6);
+		return MapViewport.EQUATOR_METERS * Math.cos(lat) / worldPixels(mapView);
 	}
 	
 	@Override
@@ -866,10 +2032,36 @@ public class MainActivity extends MapActivity {
 		return false;
 	}
 	
-	private void exportData()
+	private void chooseExportFormat()
+	{
+		// the text formats, then the binary archive last
+		CharSequence[] names = new CharSequence[ExportFormat.ALL.length + 1];
+		for ( int i = 0; i < ExportFormat.ALL.length; i++ ) {
+			names[i] = ExportFormat.ALL[i].name;
+		}
+		names[ExportFormat.ALL.length] = "Compressed " + LocationArchive.NAME;
+		
+		new AlertDialog.Builder(this).setTitle("Export Locations As")
+			.setItems(names, new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int which) {
+					exportData(which < ExportFormat.ALL.length ? ExportFormat.ALL[which] : null);
+				}
+			})
+			.show();
+	}
+	
+	private File exportDir()
+	{
+		return new File(Environment.getExternalStorageDirectory(), "Android/data/" + getPackageName() + "/files/");
+	}
+	
+	/**
+	 * format is null for a binary archive.
+	 */
+	private void exportData(ExportFormat format)
 	{
 		try {
-			if ( dialog != null ) {
+			if ( dialog != null || points == null || pointsByTime == null ) {
 				new AlertDialog.Builder(this).setTitle("Loading Data")
 				.setMessage("Loading data... Please wait before exporting.")
 				.setIcon(android.R.drawable.ic_dialog_info)
@@ -893,12 +2085,11 @@ public class MainActivity extends MapActivity {
 				return;
 			}
 			
-			SimpleDateFormat fmt = new SimpleDateFormat("yyy.MM.dd_hhmmss");
+			SimpleDateFormat fmt = new SimpleDateFormat("yyy.MM.dd_HHmmss");
 			Calendar cal = Calendar.getInstance(Locale.getDefault());
-			String filename = fmt.format(cal.getTime()) + "__Location_Cache.gpx";
+			String filename = fmt.format(cal.getTime()) + "__Location_Cache." + (format != null ? format.extension : LocationArchive.EXTENSION);
 			
-			File external = Environment.getExternalStorageDirectory();
-			File dir      = new File(external, "Android/data/" + getPackageName() + "/files/");
+			File dir      = exportDir();
 			File file     = new File(dir, filename);
 			
 			Log.d("LocationCacheViewer", "Can write: " + file.getPath() + " - " + file.canWrite());
@@ -925,45 +2116,315 @@ public class MainActivity extends MapActivity {
 				return;
 			}
 			
-			BufferedWriter out = new BufferedWriter(new FileWriter(file));
-
-			out.write("<gpx xmlns=\"http://www.topografix.com/GPX/1/1\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" version=\"1.1\" xsi:schemaLocation=\"http://www.topografix.com/GPX/1/1 http://www.topografix.com/GPX/1/1/gpx.xsd\" creator=\"Android Location Cache Viewer\">\n");
-			out.write("<metadata>\n");
-			out.write("<name>Android Location Cache</name>\n");
-			out.write("<desc>Exported on " + fmt.format(cal.getTime()) + " Total Points: " + pointsAll.size() + "</desc></metadata>\n");
-			//out.write("<trk>");
-			//out.write("<trkseg>\n");
-			final SimpleDateFormat iso8601Format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");			
-			final String format = "<wpt lat=\"%f\" lon=\"%f\"><time>%sZ</time><name>%s</name><desc>type: %s, when: %s, accuracy: %d, confidence: %d</desc></wpt>\n";
-			for ( LocationInformation loc : pointsAll ) {
-				if ( loc.accuracy >= 0 && loc.confidence >= 0 ) {
-					out.write(String.format(format, loc.latIE6/1E6, loc.lonIE6/1E6, iso8601Format.format(new Date(loc.timestamp)), loc.key, loc.type, loc.getTimeString(), loc.accuracy, loc.confidence));
-				}
+			new ExportTask(format, file, fmt.format(cal.getTime())).execute((Void[])null);
+		} catch ( Exception ex ) {
+			showExportError(ex);
+			return;
+		}
+	}
+	
+	/**
+	 * Lists the archives in the export directory, newest first, to pick one to import.
+	 */
+	private void chooseArchive()
+	{
+		if ( task != null ) {
+			Toast.makeText(this, "Loading data... Please wait before importing.", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		
+		File dir = exportDir();
+		File[] files = dir.listFiles();
+		int count = 0;
+		if ( files != null ) {
+			for ( int i = 0; i < files.length; i++ ) {
+				if ( files[i].getName().endsWith("." + LocationArchive.EXTENSION) ) files[count++] = files[i];
 			}
-
-			//out.write("</trkseg>\n");
-			//out.write("</trk>");
-			out.write("</gpx>");
-			
-			out.flush();
-			out.close();
-			
-			new AlertDialog.Builder(this).setTitle("File Exported")
-			.setMessage("GPX file saved to:\n\n" + file.getPath())
+		}
+		
+		if ( count == 0 ) {
+			new AlertDialog.Builder(this).setTitle("No Archives Found")
+			.setMessage("Export a Compressed Archive first, or copy one to:\n\n" + dir.getPath())
 			.setIcon(android.R.drawable.ic_dialog_info)
 			.setPositiveButton("Ok", new DialogInterface.OnClickListener() {
 				public void onClick(DialogInterface dialog, int which) {}
 			})
-			.show();			
-		} catch ( Exception ex ) {
-			new AlertDialog.Builder(this).setTitle("Error Exporting Data")
-			.setMessage("Unable to export the data.\n\nReason: " + ex.getMessage())
-			.setIcon(android.R.drawable.ic_dialog_alert)
+			.show();
+			return;
+		}
+		
+		// by modification time - older exports were named with a 12 hour clock, so their
+		// names don't sort by time
+		final File[] archives = new File[count];
+		System.arraycopy(files, 0, archives, 0, count);
+		Arrays.sort(archives, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long ta = a.lastModified(), tb = b.lastModified();
+				return ta > tb ? -1 : (ta == tb ? a.getName().compareTo(b.getName()) : 1);
+			}
+		});
+		String[] names = new String[count];
+		for ( int i = 0; i < count; i++ ) names[i] = archives[i].getName();
+		
+		new AlertDialog.Builder(this).setTitle("Import Archive")
+			.setItems(names, new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int which) {
+					final File file = archives[which];
+					new StoredPointsTask("Importing Archive", file.getName(), "Unable to Import Archive") {
+						@Override
+						protected LocationStore read() throws IOException {
+							FileInputStream in = new FileInputStream(file);
+							try {
+								return LocationArchive.read(in);
+							} finally {
+								in.close();
+							}
+						}
+					}.start();
+				}
+			})
+			.show();
+	}
+	
+	/**
+	 * Shows the newest of the history's locations, which go back further than the cache.
+	 */
+	private void showHistory()
+	{
+		if ( task != null ) {
+			Toast.makeText(this, "Loading data... Please wait before showing the history.", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		
+		new StoredPointsTask("Reading History", "Location History", "Unable to Read History") {
+			@Override
+			protected LocationStore read() throws IOException {
+				return history.readTail(HISTORY_SHOW_RECORDS);
+			}
+		}.start();
+	}
+	
+	/**
+	 * Reads points from an archive or the history in the background and shows them in
+	 * place of the device's cache, until the next reload.
+	 */
+	private abstract class StoredPointsTask extends AsyncTask<Void, Void, Boolean> {
+		private final String title;
+		private final String source;
+		private final String errorTitle;
+		
+		private ProgressDialog progressDialog = null;
+		private LocationStore  imported = null;
+		private int[]          importedByTime = null;
+		private TimeIndex      importedIndex  = null;
+		private Markers.Prepared[] prepared = null;
+		private final long     windowMs = timeWindowMs;
+		private Exception      error = null;
+		
+		StoredPointsTask(String title, String source, String errorTitle) {
+			this.title      = title;
+			this.source     = source;
+			this.errorTitle = errorTitle;
+		}
+		
+		protected abstract LocationStore read() throws IOException;
+		
+		/**
+		 * Runs as the task, unless a load or another read got there first - the list of
+		 * archives can stay open while one starts.
+		 */
+		void start() {
+			if ( task != null ) {
+				Toast.makeText(MainActivity.this, "Loading data... Please wait.", Toast.LENGTH_SHORT).show();
+				return;
+			}
+			task = this;
+			execute((Void[])null);
+		}
+		
+		@Override
+		protected void onPreExecute() {
+			progressDialog = ProgressDialog.show(MainActivity.this, title, source);
+		}
+		
+		@Override
+		protected Boolean doInBackground(Void... params) {
+			try {
+				imported = read();
+				importedByTime = imported.sortedByTime();
+				importedIndex  = new TimeIndex(imported, importedByTime);
+				prepared = prepareLocations(imported, importedIndex, windowMs);
+				return Boolean.TRUE;
+			} catch ( Exception ex ) {
+				error = ex;
+				return Boolean.FALSE;
+			}
+		}
+		
+		@Override
+		protected void onCancelled() {
+			try {
+				progressDialog.dismiss();
+			} catch ( Exception ex ) { } // ignore the "View not attached to a window manager" exception
+			
+			task = null;
+		}
+		
+		@Override
+		protected void onPostExecute(Boolean result) {
+			try {
+				progressDialog.dismiss();
+			} catch ( Exception ex ) { } // ignore the "View not attached to a window manager" exception
+			
+			task = null;
+			
+			if ( !result ) {
+				showError(errorTitle, error);
+				return;
+			}
+			
+			if ( isReplaying() ) {
+				stopReplay();
+			}
+			showLocations(prepared);
+			viewingStored   = true;
+			points          = imported;
+			pointsByTime    = importedByTime;
+			pointsSignature = null; // so the next reload reads the device's cache again
+			timeIndex       = importedIndex;
+			heatmap.setStore(points);
+			if ( windowMs != timeWindowMs ) {
+				applyTimeWindow();
+			}
+			
+			updateLabels();
+			zoomToVisibleMarkers();
+			
+			Toast.makeText(MainActivity.this, "Showing " + points.size() + " locations from " + source + ". Reload to see this device's cache.", Toast.LENGTH_LONG).show();
+		}
+	}
+	
+	private void showExportError(Exception ex)
+	{
+		new AlertDialog.Builder(this).setTitle("Error Exporting Data")
+		.setMessage("Unable to export the data.\n\nReason: " + ex.getMessage())
+		.setIcon(android.R.drawable.ic_dialog_alert)
+		.setPositiveButton("Ok", new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int which) {}
+		})
+		.show();
+	}
+	
+	/**
+	 * Writes the export file in the background behind a progress dialog that can cancel it.
+	 * A cancelled or failed export doesn't leave a partial file behind.
+	 */
+	private class ExportTask extends AsyncTask<Void, Integer, Integer> {
+		private final ExportFormat format; // null for a binary archive
+		private final String formatName;
+		private final File file;
+		private final String exportedOn;
+		
+		// taken up front. A shown store and its order are never changed afterwards - a reload
+		// patches a copy (see LoadDataTask) and swaps it in - so these stay as they were.
+		private final LocationStore exportPoints = points;
+		private final int[]         exportOrder  = pointsByTime;
+		
+		private ProgressDialog progressDialog = null;
+		private Exception error = null;
+		
+		ExportTask(ExportFormat format, File file, String exportedOn) {
+			this.format     = format;
+			this.formatName = format != null ? format.name : LocationArchive.NAME;
+			this.file       = file;
+			this.exportedOn = exportedOn;
+		}
+		
+		@Override
+		protected void onPreExecute() {
+			progressDialog = new ProgressDialog(MainActivity.this);
+			progressDialog.setTitle("Exporting " + formatName);
+			progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+			progressDialog.setMax(exportOrder.length);
+			progressDialog.setCancelable(true);
+			progressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+				public void onCancel(DialogInterface dialog) {
+					cancel(false);
+				}
+			});
+			progressDialog.setButton("Cancel", new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int which) {
+					cancel(false);
+				}
+			});
+			progressDialog.show();
+		}
+		
+		@Override
+		protected Integer doInBackground(Void... params) {
+			Exporter.Progress progress = new Exporter.Progress() {
+				public boolean onProgress(int done, int total) {
+					publishProgress(done);
+					return !isCancelled();
+				}
+			};
+			
+			try {
+				if ( format == null ) {
+					FileOutputStream out = new FileOutputStream(file);
+					try {
+						return LocationArchive.write(out, exportPoints, exportOrder, true, progress);
+					} finally {
+						out.close();
+					}
+				}
+				
+				BufferedWriter out = new BufferedWriter(new FileWriter(file), 64 * 1024);
+				try {
+					return Exporter.export(out, exportPoints, exportOrder, format, exportedOn, progress);
+				} finally {
+					out.close();
+				}
+			} catch ( Exception ex ) {
+				error = ex;
+				return -1;
+			}
+		}
+		
+		@Override
+		protected void onProgressUpdate(Integer... values) {
+			progressDialog.setProgress(values[0]);
+		}
+		
+		@Override
+		protected void onCancelled() {
+			dismiss();
+			file.delete();
+		}
+		
+		@Override
+		protected void onPostExecute(Integer written) {
+			dismiss();
+			
+			if ( error != null || written < 0 ) {
+				file.delete();
+				if ( error != null ) showExportError(error);
+				return;
+			}
+			
+			new AlertDialog.Builder(MainActivity.this).setTitle("File Exported")
+			.setMessage(formatName + " file with " + written + " points saved to:\n\n" + file.getPath())
+			.setIcon(android.R.drawable.ic_dialog_info)
 			.setPositiveButton("Ok", new DialogInterface.OnClickListener() {
 				public void onClick(DialogInterface dialog, int which) {}
 			})
 			.show();
-			return;
+		}
+		
+		private void dismiss() {
+			try {
+				progressDialog.dismiss();
+			} catch ( Exception ex ) { } // ignore the "View not attached to a window manager" exception
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,94 @@
+package com.bafflesoft.locationcache.viewer;
+
+import android.graphics.Point;
+
+import com.google.android.maps.GeoPoint;
+import com.google.android.maps.MapView;
+
+/**
+ * Everything drawing the markers needs to know about the map for one frame, copied out of
+ * the MapView on the UI thread so it can also be used on the render thread. Positions
+ * are mapped from MercatorPoints coordinates to pixels with one scale and offset.
+ */
+public class MapViewport {
+	public static final double EQUATOR_METERS = 40075016.686;
+
+	public int width, height;
+	public int zoom;
+
+	public int centerLatE6, centerLonE6;
+	public int latSpanE6, lonSpanE6;
+
+	// the center in Mercator and on screen, and pixels per Mercator unit
+	public int   centerX, centerY;
+	public float centerPxX, centerPxY;
+	public float scale;
+
+	public double metersPerPixel; // at the center
+
+	/**
+	 * Takes the map's current view. worldPixels is the width of the world at its zoom.
+	 */
+	public void set(MapView mapView, float worldPixels, Point scratch) {
+		GeoPoint center = mapView.getMapCenter();
+		mapView.getProjection().toPixels(center, scratch);
+
+		width  = mapView.getWidth();
+		height = mapView.getHeight();
+		zoom   = mapView.getZoomLevel();
+
+		centerLatE6 = center.getLatitudeE6();
+		centerLonE6 = center.getLongitudeE6();
+		latSpanE6   = mapView.getLatitudeSpan();
+		lonSpanE6   = mapView.getLongitudeSpan();
+
+		centerX   = MercatorPoints.x(centerLonE6);
+		centerY   = MercatorPoints.y(centerLatE6);
+		centerPxX = scratch.x;
+		centerPxY = scratch.y;
+		scale     = worldPixels / MercatorPoints.WORLD;
+
+		metersPerPixel = EQUATOR_METERS * Math.cos(Math.toRadians(centerLatE6 / 1E6)) / worldPixels;
+	}
+
+	/**
+	 * The same view with marginX and marginY more pixels on each side, for rendering into a
+	 * buffer bigger than the screen.
+	 */
+	public void setExpanded(MapViewport view, int marginX, int marginY) {
+		width  = view.width  + 2 * marginX;
+		height = view.height + 2 * marginY;
+		zoom   = view.zoom;
+
+		centerLatE6 = view.centerLatE6;
+		centerLonE6 = view.centerLonE6;
+		latSpanE6   = view.height == 0 ? view.latSpanE6 : (int) ((long) view.latSpanE6 * height / view.height);
+		lonSpanE6   = view.width  == 0 ? view.lonSpanE6 : (int) ((long) view.lonSpanE6 * width  / view.width);
+
+		centerX   = view.centerX;
+		centerY   = view.centerY;
+		centerPxX = view.centerPxX + marginX;
+		centerPxY = view.centerPxY + marginY;
+		scale     = view.scale;
+
+		metersPerPixel = view.metersPerPixel;
+	}
+
+	public float toScreenX(double x) {
+		return (float) ((x - centerX) * scale) + centerPxX;
+	}
+
+	public float toScreenY(double y) {
+		return (float) ((y - centerY) * scale) + centerPxY;
+	}
+
+	// the edges of the view in Mercator
+	public double left()   { return centerX - centerPxX / scale; }
+	public double top()    { return centerY - centerPxY / scale; }
+	public double right()  { return left() + width  / scale; }
+	public double bottom() { return top()  + height / scale; }
+
+	public boolean contains(MapViewport view) {
+		return view.left() >= left() && view.right() <= right() && view.top() >= top() && view.bottom() <= bottom();
+	}
+}
@@ -0,0 +1,37 @@
+package com.bafflesoft.locationcache.viewer;
+
+/**
+ * Web Mercator coordinates of a set of store rows, worked out once when the set is built
+ * so drawing a frame is a multiply and add per point instead of a Projection call. x runs
+ * from 0 at 180 west to WORLD at 180 east, y from 0 at the top of the map to WORLD at
+ * the bottom, in fixed point: WORLD is 2^30, so even fully zoomed in a unit is under a
+ * pixel.
+ */
+public class MercatorPoints {
+	public static final int WORLD = 1 << 30;
+
+	// Mercator stops here, the poles are infinitely far away
+	private static final double MAX_LATITUDE = 85.05112878;
+
+	public final int[] x;
+	public final int[] y;
+
+	public MercatorPoints(LocationStore store, int[] rows, int count) {
+		x = new int[count];
+		y = new int[count];
+		for ( int i = 0; i < count; i++ ) {
+			x[i] = x(store.lonE6[rows[i]]);
+			y[i] = y(store.latE6[rows[i]]);
+		}
+	}
+
+	public static int x(int lonE6) {
+		return (int) ((lonE6 / 1E6 + 180) / 360 * WORLD);
+	}
+
+	public static int y(int latE6) {
+		double lat = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latE6 / 1E6));
+		double sin = Math.sin(Math.toRadians(lat));
+		return (int) ((0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI)) * WORLD);
+	}
+}
@@ -1,24 +1,58 @@
 package com.bafflesoft.locationcache.viewer;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 
-import android.util.Log;
-
 public class ShellCommand {
 	private static final String TAG = "LovationCacheViewer";
 	private Boolean can_su;
 
-	public SH sh;
-	public SH su;
+	// one root shell kept open for every command that needs root
+	public final ShellSession root;
+	private final String rootShell;
 	
 	public CommandResult result = null;
 
 	public ShellCommand() {
-		sh = new SH("sh");
-		su = new SH("su");
+		this("su");
+	}
+
+	/**
+	 * rootShell is what gets started for root commands - "su" on a device, or plain "sh"
+	 * to try things out without root.
+	 */
+	public ShellCommand(String rootShell) {
+		root = new ShellSession(rootShell);
+		this.rootShell = rootShell;
+	}
+
+	/**
+	 * A root shell of its own, for a long command - like streaming a whole file - that
+	 * shouldn't hold up everything else waiting for root. The caller closes it.
+	 */
+	public ShellSession openSession() {
+		return new ShellSession(rootShell);
+	}
+
+	/**
+	 * Ends the root shell. Anything run on it afterwards starts a new one.
+	 */
+	public void close() {
+		root.close();
+	}
+
+	/**
+	 * Ends the root shell without waiting for a command that's running on it: that command
+	 * is cut short, and the session is tidied up on another thread once it lets go.
+	 */
+	public void closeInBackground() {
+		root.kill();
+		new Thread("ShellCommand close") {
+			@Override
+			public void run() {
+				root.close();
+			}
+		}.start();
 	}
 
 	public boolean canSU() {
@@ -27,7 +61,7 @@ public class ShellCommand {
 
 	public boolean canSU(boolean force_check) {
 		if (can_su == null || force_check) {
-			CommandResult r = su.runWaitFor("id");
+			CommandResult r = root.run("id");
 			StringBuilder out = new StringBuilder();
 
 			if (r.stdout != null)
@@ -35,7 +69,7 @@ public class ShellCommand {
 			if (r.stderr != null)
 				out.append(r.stderr);
 
-			Log.v(TAG, "canSU() su[" + r.exit_value + "]: " + out);
+			DebugLog.v(TAG, "canSU() su[" + r.exit_value + "]: " + out);
 			can_su = r.success();
 
 			result = r;
@@ -44,11 +78,7 @@ public class ShellCommand {
 		return can_su;
 	}
 
-	public SH suOrSH() {
-		return canSU() ? su : sh;
-	}
-
-	public class CommandResult {
+	public static class CommandResult {
 		public final byte[] stdout;
 		public final String stderr;
 		public final Integer exit_value;
@@ -68,84 +98,62 @@ public class ShellCommand {
 		}
 	}
 
-	public class SH {
-		private String SHELL = "sh";
-
-		public SH(String SHELL_in) {
-			SHELL = SHELL_in;
-		}
+	/**
+	 * fileSignature() of a file that exists, but without a stat to tell exactly when it
+	 * was last written. ls only gives the minute, so it never counts as unchanged.
+	 */
+	public static final String SIGNATURE_UNKNOWN = "unknown";
+
+	/**
+	 * Size and modification time of the file, as a string that changes whenever the file
+	 * does, SIGNATURE_UNKNOWN if that can't be found out, or null if it doesn't exist.
+	 */
+	public String fileSignature(String path) {
+		CommandResult r = root.run("stat -c '%s %Y' " + path + " 2>/dev/null"
+				+ " || { ls " + path + " >/dev/null && echo " + SIGNATURE_UNKNOWN + "; }");
+		if ( !r.success() || r.stdout == null ) return null;
+
+		String signature = new String(r.stdout).trim();
+		return signature.length() > 0 ? signature : null;
+	}
 
-		public Process run(String s) {
-			Process process = null;
-			try {
-				process = Runtime.getRuntime().exec(SHELL);
-				DataOutputStream toProcess = new DataOutputStream(process.getOutputStream());
-				toProcess.writeBytes("exec " + s + "\n");
-				toProcess.flush();
-			} catch (Exception e) {
-				Log.e("LocationCacheViewer", "Exception while trying to run: '" + s
-						+ "' " + e.getMessage());
-				process = null;
-			}
-			return process;
+	/**
+	 * Size in bytes of the file, for showing progress, or 0 if it can't be found out.
+	 */
+	public int fileSize(String path) {
+		CommandResult r = root.run("stat -c %s " + path + " 2>/dev/null || wc -c < " + path);
+		if ( !r.success() || r.stdout == null ) return 0;
+
+		try {
+			return Integer.parseInt(new String(r.stdout).trim());
+		} catch ( NumberFormatException ex ) {
+			return 0;
 		}
+	}
 
-		private byte[] getStreamBytes(InputStream is) {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream(10240);
-
-			byte[] buf = new byte[1024];
-			int read = -1;
-			try {
-				while ( (read = is.read(buf)) > 0 ) {
-					baos.write(buf, 0, read);
-				}
-				is.close();
-			} catch (Exception ex) {
-				Log.e(TAG, ex.getMessage());
+	/**
+	 * Reads the stream to its end. Only short command output is read this way - a cache
+	 * file is streamed straight into the parser - so the array just doubles as it fills.
+	 */
+	static byte[] readStream(InputStream in) throws IOException {
+		byte[] buf = new byte[8192];
+		int length = 0;
+		int read;
+		while ( (read = in.read(buf, length, buf.length - length)) >= 0 ) {
+			length += read;
+			if ( length == buf.length ) {
+				byte[] grown = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, grown, 0, length);
+				buf = grown;
 			}
-			return baos.toByteArray();
 		}
 
-		private String getStreamLines(InputStream is) {
-			String out = null;
-			StringBuffer buffer = null;
-			DataInputStream dis = new DataInputStream(is);
-
-			try {
-				if (dis.available() > 0) {
-					buffer = new StringBuffer(dis.readLine());
-					while (dis.available() > 0)
-						buffer.append("\n").append(dis.readLine());
-				}
-				dis.close();
-			} catch (Exception ex) {
-				Log.e(TAG, ex.getMessage());
-			}
-			if (buffer != null)
-				out = buffer.toString();
-			return out;
-		}
+		byte[] exact = new byte[length];
+		System.arraycopy(buf, 0, exact, 0, length);
+		return exact;
+	}
 
-		public CommandResult runWaitFor(String s) {
-			Process process = run(s);
-			Integer exit_value = null;
-			byte[] stdout = null;
-			String stderr = null;
-			if (process != null) {
-				try {
-					exit_value = process.waitFor();
-
-					stdout = getStreamBytes(process.getInputStream());
-					stderr = getStreamLines(process.getErrorStream());
-
-				} catch (InterruptedException e) {
-					Log.e(TAG, "runWaitFor " + e.toString());
-				} catch (NullPointerException e) {
-					Log.e(TAG, "runWaitFor " + e.toString());
-				}
-			}
-			result = new CommandResult(exit_value, stdout, stderr);
-			return result;
-		}
+	public interface StreamConsumer {
+		public void consume(InputStream stdout) throws IOException;
 	}
 }
\ No newline at end of file
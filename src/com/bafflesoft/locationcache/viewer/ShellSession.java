@@ -0,0 +1,372 @@
+package com.bafflesoft.locationcache.viewer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.bafflesoft.locationcache.viewer.ShellCommand.CommandResult;
+import com.bafflesoft.locationcache.viewer.ShellCommand.StreamConsumer;
+
+/**
+ * One long-lived shell that commands are written to one after another, so su only has
+ * to be started (and granted) once. Each command is followed by a marker written to
+ * stdout with the command's exit code, and one written to stderr, which is how the
+ * output of one command is told apart from the next:
+ *
+ *   { command
+ *   } &lt;/dev/null
+ *   rc=$?; printf '\n%s\n' MARKER &gt;&amp;2; printf '\n%s %d\n' MARKER $rc
+ *
+ * The marker includes a random token and the command's sequence number, so binary
+ * output can't end a command early by accident, and stderr is matched to its command by
+ * the number rather than by order. If the shell exits (su was denied, or it was killed)
+ * the next command starts a new one.
+ */
+public class ShellSession {
+	private static final String TAG = "LocationCacheViewer";
+
+	private static final long STDERR_WAIT_MS = 2000;
+
+	// only this much of a command's stderr is kept, the rest is read and dropped
+	static final int MAX_STDERR = 16 * 1024;
+
+	private final String shell;
+	private final String token;
+
+	private volatile Process process = null;
+	private OutputStream stdin   = null;
+	private InputStream  stdout  = null;
+	private int          sequence = 0;
+
+	// stdout read so far that hasn't been handed out yet
+	private byte[] buffer = new byte[8192];
+	private int    start  = 0;
+	private int    end    = 0;
+
+	// stderr of each finished command, in order; null once the shell has gone away
+	private LinkedBlockingQueue<Stderr> stderrQueue = null;
+	private static final Stderr STDERR_CLOSED = new Stderr(-1, null);
+
+	public ShellSession(String shell) {
+		this.shell = shell;
+		this.token = "__lcv_" + Long.toHexString(new Random().nextLong() & Long.MAX_VALUE) + "_";
+	}
+
+	public synchronized boolean isAlive() {
+		return process != null;
+	}
+
+	/**
+	 * Runs the command and returns its stdout as a whole.
+	 */
+	public CommandResult run(String command) {
+		final byte[][] out = new byte[1][];
+		try {
+			CommandResult r = runStreaming(command, new StreamConsumer() {
+				public void consume(InputStream in) throws IOException {
+					out[0] = ShellCommand.readStream(in);
+				}
+			});
+			return new CommandResult(r.exit_value, out[0], r.stderr);
+		} catch ( IOException ex ) {
+			DebugLog.e(TAG, "run '" + command + "' " + ex.getMessage());
+			return new CommandResult(null, null, ex.getMessage());
+		}
+	}
+
+	/**
+	 * Runs the command and hands its stdout to the consumer while it's still being written.
+	 * The stream ends with the command's output; whatever the consumer leaves unread is
+	 * skipped. The returned result has no stdout.
+	 */
+	public synchronized CommandResult runStreaming(String command, StreamConsumer consumer) throws IOException {
+		if ( process == null ) {
+			start();
+		}
+
+		int seq = ++sequence;
+		String marker = token + seq;
+		String framed = "{ " + command + "\n} </dev/null\n"
+			+ "rc=$?; printf '\\n%s\\n' " + marker + " >&2; printf '\\n%s %d\\n' " + marker + " $rc\n";
+
+		Frame frame = new Frame(("\n" + marker + " ").getBytes());
+		try {
+			stdin.write(framed.getBytes());
+			stdin.flush();
+
+			consumer.consume(frame);
+			frame.skipRest();
+		} catch ( IOException ex ) {
+			// half-read output would end up in front of the next command's
+			close();
+			throw ex;
+		}
+
+		String stderr = nextStderr(seq);
+		if ( frame.exitValue == null ) {
+			// the shell went away partway through
+			close();
+		}
+		return new CommandResult(frame.exitValue, null, stderr);
+	}
+
+	/**
+	 * Kills the shell without waiting for the command that's running, if any. Doesn't
+	 * block, so it's safe on the UI thread. A command running in the shell itself ends
+	 * right away; one the shell started (like cat) holds the output open, and so keeps
+	 * the session, until it finishes.
+	 */
+	public void kill() {
+		Process running = process;
+		if ( running != null ) running.destroy();
+	}
+
+	public synchronized void close() {
+		if ( process == null ) return;
+
+		try {
+			stdin.close();
+		} catch ( IOException ex ) { }
+		process.destroy();
+
+		process = null;
+		stdin   = null;
+		stdout  = null;
+		stderrQueue = null;
+		start = end = 0;
+	}
+
+	private void start() throws IOException {
+		process = Runtime.getRuntime().exec(shell);
+		stdin   = process.getOutputStream();
+		stdout  = process.getInputStream();
+		start = end = 0;
+
+		stderrQueue = new LinkedBlockingQueue<Stderr>();
+		new StderrReader(process.getErrorStream(), stderrQueue).start();
+	}
+
+	/**
+	 * Stderr written by command number seq. Its marker is written before the stdout one,
+	 * so it's normally already there; anything left from earlier commands that gave up
+	 * waiting is skipped. When the shell died there's no marker, just whatever it wrote
+	 * before exiting.
+	 */
+	private String nextStderr(int seq) {
+		LinkedBlockingQueue<Stderr> queue = stderrQueue;
+		if ( queue == null ) return null;
+
+		try {
+			while ( true ) {
+				Stderr next = queue.poll(STDERR_WAIT_MS, TimeUnit.MILLISECONDS);
+				if ( next == null || next == STDERR_CLOSED ) return null;
+				if ( next.sequence < seq && next.sequence != 0 ) continue;
+				return next.text.length() > 0 ? next.text : null;
+			}
+		} catch ( InterruptedException ex ) {
+			return null;
+		}
+	}
+
+	/**
+	 * One command's stderr; sequence 0 for what a dying shell wrote without a marker.
+	 */
+	private static class Stderr {
+		final int    sequence;
+		final String text;
+
+		Stderr(int sequence, String text) {
+			this.sequence = sequence;
+			this.text     = text;
+		}
+	}
+
+	/**
+	 * Stdout of one command: everything up to the marker line.
+	 */
+	private class Frame extends InputStream {
+		private final byte[] sentinel;
+		private boolean ended = false;
+		Integer exitValue = null;
+
+		Frame(byte[] sentinel) {
+			this.sentinel = sentinel;
+			if ( buffer.length < sentinel.length * 2 ) {
+				buffer = grow(buffer, sentinel.length * 2);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if ( len == 0 ) return 0;
+
+			int available = available();
+			if ( available == 0 ) return -1;
+
+			int n = Math.min(len, available);
+			System.arraycopy(buffer, start, b, off, n);
+			start += n;
+			return n;
+		}
+
+		/**
+		 * Bytes at the start of the buffer that are certainly output; 0 once the marker is
+		 * reached. Blocks until there's at least one or the frame ends.
+		 */
+		@Override
+		public int available() throws IOException {
+			while ( !ended ) {
+				int match = indexOf(sentinel, start, end);
+				if ( match == start ) {
+					start += sentinel.length;
+					exitValue = readExitValue();
+					ended = true;
+					return 0;
+				}
+				if ( match > start ) return match - start;
+
+				// a partial marker may be sitting at the end of the buffer
+				int safe = end - start - (sentinel.length - 1);
+				if ( safe > 0 ) return safe;
+
+				if ( !fill() ) {
+					// the shell exited; what's left is all the output there is
+					ended = end == start;
+					return end - start;
+				}
+			}
+			return 0;
+		}
+
+		void skipRest() throws IOException {
+			int n;
+			while ( (n = available()) > 0 ) {
+				start += n;
+			}
+		}
+
+		private Integer readExitValue() throws IOException {
+			int value = 0;
+			boolean digits = false, negative = false;
+			while ( true ) {
+				if ( start == end && !fill() ) return null;
+
+				byte c = buffer[start++];
+				if ( c == '\n' ) {
+					return digits ? Integer.valueOf(negative ? -value : value) : null;
+				} else if ( c == '-' && !digits ) {
+					negative = true;
+				} else if ( c >= '0' && c <= '9' ) {
+					value  = value * 10 + (c - '0');
+					digits = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads more of stdout into the buffer, compacting or growing it first if it's full.
+	 *
+	 * @return false at end of stream
+	 */
+	private boolean fill() throws IOException {
+		if ( start > 0 ) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end  -= start;
+			start = 0;
+		}
+		if ( end == buffer.length ) {
+			buffer = grow(buffer, buffer.length * 2);
+		}
+
+		int read = stdout.read(buffer, end, buffer.length - end);
+		if ( read < 0 ) return false;
+
+		end += read;
+		return true;
+	}
+
+	private int indexOf(byte[] pattern, int from, int to) {
+		byte first = pattern[0];
+		for ( int i = from; i <= to - pattern.length; i++ ) {
+			if ( buffer[i] != first ) continue;
+
+			int k = 1;
+			while ( k < pattern.length && buffer[i + k] == pattern[k] ) k++;
+			if ( k == pattern.length ) return i;
+		}
+
+		// only a full marker counts; a partial one at the end is left for the next fill
+		return -1;
+	}
+
+	private static byte[] grow(byte[] arr, int capacity) {
+		byte[] grown = new byte[capacity];
+		System.arraycopy(arr, 0, grown, 0, arr.length);
+		return grown;
+	}
+
+	/**
+	 * Splits stderr into one entry per command at the stderr markers, so it's always
+	 * drained and can't block the shell. Only the start of a long one is kept.
+	 */
+	private class StderrReader extends Thread {
+		private final InputStream in;
+		private final LinkedBlockingQueue<Stderr> queue;
+
+		StderrReader(InputStream in, LinkedBlockingQueue<Stderr> queue) {
+			super("ShellSession stderr");
+			setDaemon(true);
+			this.in    = in;
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+			StringBuilder text = new StringBuilder();
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+				String line;
+				while ( (line = reader.readLine()) != null ) {
+					if ( line.startsWith(token) ) {
+						// drop the line break after the output and the one printed in front of the marker
+						for ( int strip = 0; strip < 2 && text.length() > 0 && text.charAt(text.length() - 1) == '\n'; strip++ ) {
+							text.setLength(text.length() - 1);
+						}
+
+						queue.put(new Stderr(sequenceOf(line), text.toString()));
+						text.setLength(0);
+					} else if ( text.length() < MAX_STDERR ) {
+						text.append(line, 0, Math.min(line.length(), MAX_STDERR - text.length())).append('\n');
+					}
+				}
+				if ( text.length() > 0 ) {
+					text.setLength(text.length() - 1);
+					queue.put(new Stderr(0, text.toString()));
+				}
+				queue.put(STDERR_CLOSED);
+			} catch ( IOException ex ) {
+				DebugLog.e(TAG, "stderr " + ex.getMessage());
+			} catch ( InterruptedException ex ) { }
+		}
+
+		private int sequenceOf(String marker) {
+			try {
+				return Integer.parseInt(marker.substring(token.length()).trim());
+			} catch ( NumberFormatException ex ) {
+				return 0;
+			}
+		}
+	}
+}
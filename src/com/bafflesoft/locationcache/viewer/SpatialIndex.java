@@ -0,0 +1,183 @@
+package com.bafflesoft.locationcache.viewer;
+
+/**
+ * Fixed grid over latitude/longitude (E6) so drawing only has to look at the points near
+ * the visible part of the map. Built once after a load; the cells are laid out in a single
+ * array (counting sort), so there are no per-cell objects.
+ */
+public class SpatialIndex {
+	private static final int POINTS_PER_CELL = 8;
+	private static final int MAX_CELLS_PER_SIDE = 256;
+
+	private final int minLat;
+	private final int minLon;
+	private final int maxLat;
+	private final int maxLon;
+	private final long cellHeight;
+	private final long cellWidth;
+	private final int columns;
+	private final int rows;
+
+	private final int[] cellStart;
+	private final int[] entries;
+
+	// for nearest()
+	private final LocationStore store;
+	private final int[]         storeRows;
+
+	private int maxAccuracy = 0;
+
+	/**
+	 * @param storeRows store index for each entry; the query results are positions in this array
+	 */
+	public SpatialIndex(LocationStore store, int[] storeRows, int count)
+	{
+		this.store     = store;
+		this.storeRows = storeRows;
+
+		int latLow  = Integer.MAX_VALUE, lonLow  = Integer.MAX_VALUE;
+		int latHigh = Integer.MIN_VALUE, lonHigh = Integer.MIN_VALUE;
+		for ( int i = 0; i < count; i++ ) {
+			int row = storeRows[i];
+			latLow  = Math.min(latLow,  store.latE6[row]);
+			latHigh = Math.max(latHigh, store.latE6[row]);
+			lonLow  = Math.min(lonLow,  store.lonE6[row]);
+			lonHigh = Math.max(lonHigh, store.lonE6[row]);
+			maxAccuracy = Math.max(maxAccuracy, store.accuracy[row]);
+		}
+		if ( count == 0 ) {
+			latLow = latHigh = lonLow = lonHigh = 0;
+		}
+
+		int side = (int) Math.ceil(Math.sqrt(Math.max(1, count / POINTS_PER_CELL)));
+		side = Math.max(1, Math.min(side, MAX_CELLS_PER_SIDE));
+
+		minLat  = latLow;
+		minLon  = lonLow;
+		maxLat  = latHigh;
+		maxLon  = lonHigh;
+		rows    = side;
+		columns = side;
+		cellHeight = ((long) latHigh - latLow) / rows    + 1;
+		cellWidth  = ((long) lonHigh - lonLow) / columns + 1;
+
+		// counting sort the entries into their cells
+		int[] cellOf = new int[count];
+		cellStart = new int[rows * columns + 1];
+		for ( int i = 0; i < count; i++ ) {
+			int row = storeRows[i];
+			int cell = cellRow(store.latE6[row]) * columns + cellColumn(store.lonE6[row]);
+			cellOf[i] = cell;
+			cellStart[cell + 1]++;
+		}
+		for ( int c = 0; c < rows * columns; c++ ) {
+			cellStart[c + 1] += cellStart[c];
+		}
+
+		entries = new int[count];
+		int[] fill = new int[rows * columns];
+		for ( int i = 0; i < count; i++ ) {
+			int cell = cellOf[i];
+			entries[cellStart[cell] + fill[cell]++] = i;
+		}
+	}
+
+	/**
+	 * Largest accuracy radius (meters) of any indexed point - callers can use it to pad a
+	 * query so circles centered just off screen are still found.
+	 */
+	public int getMaxAccuracy()
+	{
+		return maxAccuracy;
+	}
+
+	/**
+	 * Writes the positions of every entry in cells overlapping the box into out, which must
+	 * be at least as long as the number of indexed entries. Points in the edge cells may lie
+	 * slightly outside the box.
+	 *
+	 * @return number of positions written
+	 */
+	public int query(long latLow, long latHigh, long lonLow, long lonHigh, int[] out)
+	{
+		if ( entries.length == 0 || latHigh < minLat || latLow > maxLat || lonHigh < minLon || lonLow > maxLon ) {
+			return 0;
+		}
+
+		int rowLow  = cellRow   (latLow),  rowHigh = cellRow   (latHigh);
+		int colLow  = cellColumn(lonLow),  colHigh = cellColumn(lonHigh);
+
+		int found = 0;
+		for ( int r = rowLow; r <= rowHigh; r++ ) {
+			int first = r * columns + colLow;
+			int last  = r * columns + colHigh;
+			// cells in a row are contiguous, so the whole span can be copied at once
+			int from = cellStart[first];
+			int to   = cellStart[last + 1];
+			System.arraycopy(entries, from, out, found, to - from);
+			found += to - from;
+		}
+		return found;
+	}
+
+	/**
+	 * Position of the entry closest to the point, or -1 if there are none. Looks at rings of
+	 * cells around the point's cell, stopping once nothing further out can be closer.
+	 */
+	public int nearest(int latE6, int lonE6)
+	{
+		if ( entries.length == 0 ) return -1;
+
+		double lonScale = Math.cos(Math.toRadians(latE6 / 1E6)); // a degree of longitude shrinks away from the equator
+		int centerRow = cellRow(latE6), centerColumn = cellColumn(lonE6);
+
+		int    best = -1;
+		double bestDistance = Double.MAX_VALUE;
+		for ( int ring = 0; ; ring++ ) {
+			int rowLow = centerRow    - ring, rowHigh = centerRow    + ring;
+			int colLow = centerColumn - ring, colHigh = centerColumn + ring;
+
+			for ( int r = Math.max(0, rowLow); r <= Math.min(rows - 1, rowHigh); r++ ) {
+				boolean edge = r == rowLow || r == rowHigh;
+				for ( int c = Math.max(0, colLow); c <= Math.min(columns - 1, colHigh); c++ ) {
+					if ( !edge && c != colLow && c != colHigh ) continue; // inside the ring, already searched
+
+					int cell = r * columns + c;
+					for ( int e = cellStart[cell]; e < cellStart[cell + 1]; e++ ) {
+						int row = storeRows[entries[e]];
+						double dy = store.latE6[row] - latE6;
+						double dx = (store.lonE6[row] - lonE6) * lonScale;
+						double distance = dx * dx + dy * dy;
+						if ( distance < bestDistance ) {
+							bestDistance = distance;
+							best = entries[e];
+						}
+					}
+				}
+			}
+
+			// the closest anything outside the searched block of cells could be
+			double outside = Double.MAX_VALUE;
+			if ( rowLow  > 0 )           outside = Math.min(outside, latE6 - (minLat + rowLow * cellHeight));
+			if ( rowHigh < rows - 1 )    outside = Math.min(outside, minLat + (rowHigh + 1) * cellHeight - latE6);
+			if ( colLow  > 0 )           outside = Math.min(outside, (lonE6 - (minLon + colLow * cellWidth)) * lonScale);
+			if ( colHigh < columns - 1 ) outside = Math.min(outside, (minLon + (colHigh + 1) * cellWidth - lonE6) * lonScale);
+
+			if ( outside == Double.MAX_VALUE ) return best; // searched every cell
+			outside = Math.max(0, outside);
+			if ( best >= 0 && bestDistance <= outside * outside ) return best;
+		}
+	}
+
+	private int cellRow(long latE6)
+	{
+		long r = (latE6 - minLat) / cellHeight;
+		return (int) Math.max(0, Math.min(rows - 1, r));
+	}
+
+	private int cellColumn(long lonE6)
+	{
+		long c = (lonE6 - minLon) / cellWidth;
+		return (int) Math.max(0, Math.min(columns - 1, c));
+	}
+}
@@ -0,0 +1,66 @@
+package com.bafflesoft.locationcache.viewer;
+
+/**
+ * The store's rows in timestamp order, with the timestamps copied alongside so a time
+ * range comes down to two binary searches and then a run of rows. Rows sharing a
+ * timestamp are all kept, in load order.
+ */
+public class TimeIndex {
+	private final long[] times;
+	private final int[]  rows;
+
+	/**
+	 * byTime is the store's rows already sorted by timestamp (see LocationStore.sortedByTime()).
+	 */
+	public TimeIndex(LocationStore store, int[] byTime)
+	{
+		rows  = byTime;
+		times = new long[byTime.length];
+		for ( int i = 0; i < byTime.length; i++ ) {
+			times[i] = store.timestamp[byTime[i]];
+		}
+	}
+
+	public int size()
+	{
+		return rows.length;
+	}
+
+	public int getRow(int position)
+	{
+		return rows[position];
+	}
+
+	public long getTime(int position)
+	{
+		return times[position];
+	}
+
+	/**
+	 * Position of the first row at or after the time; size() if there's none.
+	 */
+	public int lowerBound(long time)
+	{
+		int low = 0, high = times.length;
+		while ( low < high ) {
+			int mid = (low + high) >>> 1;
+			if ( times[mid] < time ) low = mid + 1;
+			else                     high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Position just past the last row at or before the time.
+	 */
+	public int upperBound(long time)
+	{
+		int low = 0, high = times.length;
+		while ( low < high ) {
+			int mid = (low + high) >>> 1;
+			if ( times[mid] <= time ) low = mid + 1;
+			else                      high = mid;
+		}
+		return low;
+	}
+}